@@ -0,0 +1,88 @@
+package worobella;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copies a single file with SingleFileObj.copyFileTo and a whole tree with
+ * FolderFileObj.copyFolderTo, which runs on the CopyEngine. Every copy goes
+ * to a fresh target folder next to the source. With verify every copy is
+ * checksummed and read back, the difference to verify=false is its overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"WIDE", "DEEP", "MANY_SMALL", "FEW_HUGE"})
+    public SyntheticTrees.Shape shape;
+
+    @Param({"false", "true"})
+    public boolean verify;
+
+    private Path root;
+    private Core.FileNode loaded;
+    private Core.SingleFileObj file;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void loadTree() throws IOException {
+        Core.CopyEngine.verifyCopies = verify;
+        root = SyntheticTrees.create(shape);
+        loaded = SyntheticTrees.load(root, -1);
+        // the first file the walk finds, for FEW_HUGE one of the large ones
+        Core.FileTreeIterator files = new Core.FileTreeIterator(loaded.self)
+                .filter(Core.FileTreeIterator.filesOnly());
+        file = (Core.SingleFileObj) files.getNext();
+    }
+
+    @Setup(Level.Invocation)
+    public void createTarget() throws IOException {
+        target = Files.createTempDirectory(root.getParent(), "worobella-copy-");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() throws IOException {
+        SyntheticTrees.delete(target);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        SyntheticTrees.unload(loaded);
+        SyntheticTrees.delete(root);
+        Core.CopyEngine.verifyCopies = false;
+    }
+
+    @Benchmark
+    public Path copyFileTo() throws IOException {
+        Path copy = target.resolve(file.getShortName());
+        file.copyFileTo(copy.toFile());
+        return copy;
+    }
+
+    @Benchmark
+    public Path copyFolderTo() {
+        Path copy = target.resolve("copy");
+        ((Core.FolderFileObj) loaded.self).copyFolderTo(copy.toFile());
+        return copy;
+    }
+}
@@ -0,0 +1,73 @@
+package worobella;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * FileTreeIterator over a tree that is already loaded, so only the walk itself
+ * is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IterateBenchmark {
+
+    @Param({"WIDE", "DEEP", "MANY_SMALL"})
+    public SyntheticTrees.Shape shape;
+
+    @Param({"DFS", "BFS"})
+    public Core.FileTreeIterator.Order order;
+
+    private Path root;
+    private Core.FileNode loaded;
+
+    @Setup(Level.Trial)
+    public void loadTree() throws IOException {
+        root = SyntheticTrees.create(shape);
+        loaded = SyntheticTrees.load(root, -1);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        SyntheticTrees.unload(loaded);
+        SyntheticTrees.delete(root);
+    }
+
+    @Benchmark
+    public int iterate(Blackhole blackhole) {
+        Core.FileTreeIterator iterator = new Core.FileTreeIterator(loaded.self).order(order);
+        int count = 0;
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.getNext());
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public long parallelFiles() {
+        return new Core.FileTreeIterator(loaded.self).order(order)
+                .filter(Core.FileTreeIterator.filesOnly())
+                .stream(true)
+                .count();
+    }
+}
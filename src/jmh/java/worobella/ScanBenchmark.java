@@ -0,0 +1,78 @@
+package worobella;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full scan of a tree with populateFileNodes. After the first iteration the
+ * listings come from the page cache, so this measures the scanner, not the disk.
+ * latencyMicros adds a wait to every listing and stat, like a network share
+ * would; with threads=1 against a higher count it shows what the parallel scan
+ * buys on such a file system.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({"WIDE", "DEEP", "MANY_SMALL", "FEW_HUGE"})
+    public SyntheticTrees.Shape shape;
+
+    @Param({"0"})
+    public int latencyMicros;
+
+    // scanner threads, 0 keeps the default of two per core
+    @Param({"0"})
+    public int threads;
+
+    private Path root;
+    private Core.FileNode scanned;
+    private Core.DirectoryScanner defaultScanner;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        root = SyntheticTrees.create(shape);
+        defaultScanner = Core.scanner;
+        if (threads > 0) {
+            Core.scanner = new Core.DirectoryScanner(threads);
+        }
+        SyntheticTrees.simulateLatency(latencyMicros);
+    }
+
+    @TearDown(Level.Invocation)
+    public void forgetScan() {
+        SyntheticTrees.unload(scanned);
+        scanned = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        SyntheticTrees.simulateLatency(0);
+        Core.scanner = defaultScanner;
+        SyntheticTrees.delete(root);
+    }
+
+    @Benchmark
+    public Core.FileNode populateFileNodes() {
+        scanned = SyntheticTrees.load(root, -1);
+        return scanned;
+    }
+}
@@ -0,0 +1,63 @@
+package worobella;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FolderFileObj.computeSize on a freshly opened tree, where only the top level
+ * is listed and the rest has to be scanned to get the total.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SizeBenchmark {
+
+    @Param({"WIDE", "DEEP", "MANY_SMALL", "FEW_HUGE"})
+    public SyntheticTrees.Shape shape;
+
+    private Path root;
+    private Core.FileNode opened;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        root = SyntheticTrees.create(shape);
+    }
+
+    @Setup(Level.Invocation)
+    public void openTree() {
+        opened = SyntheticTrees.load(root, 1);
+    }
+
+    @TearDown(Level.Invocation)
+    public void forgetTree() {
+        SyntheticTrees.unload(opened);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        SyntheticTrees.delete(root);
+    }
+
+    @Benchmark
+    public long computeSize() {
+        return opened.self.computeSize();
+    }
+}
@@ -0,0 +1,140 @@
+package worobella;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory trees of a few typical shapes, generated in a temp dir for the
+ * benchmarks. Contents are random so that no file system can compress them.
+ */
+public final class SyntheticTrees {
+
+    public enum Shape {
+        // one folder with many files and a few empty sub folders
+        WIDE,
+        // a chain of nested folders with a handful of files on every level
+        DEEP,
+        // many folders of small files, like a source checkout
+        MANY_SMALL,
+        // a few large files
+        FEW_HUGE
+    }
+
+    private static final int WIDE_FILES = 20_000;
+    private static final int WIDE_FOLDERS = 100;
+    private static final int DEEP_LEVELS = 200;
+    private static final int DEEP_FILES = 8;
+    private static final int SMALL_FOLDERS = 200;
+    private static final int SMALL_FILES = 100;
+    private static final int SMALL_SIZE = 2048;
+    private static final int HUGE_FILES = 4;
+    private static final int HUGE_SIZE = 64 * 1024 * 1024;
+
+    private SyntheticTrees() {
+    }
+
+    static Path create(Shape shape) throws IOException {
+        Path root = Files.createTempDirectory("worobella-" + shape.name().toLowerCase() + "-");
+        Random random = new Random(42);
+        switch (shape) {
+            case WIDE:
+                for (int i = 0; i < WIDE_FILES; i++) {
+                    write(root.resolve("file" + i + ".txt"), 256, random);
+                }
+                for (int i = 0; i < WIDE_FOLDERS; i++) {
+                    Files.createDirectory(root.resolve("folder" + i));
+                }
+                break;
+            case DEEP:
+                Path level = root;
+                for (int depth = 0; depth < DEEP_LEVELS; depth++) {
+                    for (int i = 0; i < DEEP_FILES; i++) {
+                        write(level.resolve("file" + i + ".txt"), 1024, random);
+                    }
+                    level = Files.createDirectory(level.resolve("d" + depth));
+                }
+                break;
+            case MANY_SMALL:
+                write(root.resolve("README"), SMALL_SIZE, random);
+                for (int folder = 0; folder < SMALL_FOLDERS; folder++) {
+                    Path dir = Files.createDirectories(root.resolve("module" + folder % 20).resolve("src" + folder));
+                    for (int i = 0; i < SMALL_FILES; i++) {
+                        write(dir.resolve("Source" + i + ".java"), SMALL_SIZE, random);
+                    }
+                }
+                break;
+            case FEW_HUGE:
+                for (int i = 0; i < HUGE_FILES; i++) {
+                    write(root.resolve("image" + i + ".bin"), HUGE_SIZE, random);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(shape.toString());
+        }
+        return root;
+    }
+
+    static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Builds the model for a tree the way the window and the command line do,
+     * listing depth levels up front; -1 scans everything.
+     */
+    static Core.FileNode load(Path root, int depth) {
+        Core.prefetchDepth = depth;
+        return Core.populateFileNodes(root.toString());
+    }
+
+    /**
+     * Makes every directory listing and stat of the scanner wait this long
+     * first, to stand in for a slow file system; 0 turns it off.
+     */
+    static void simulateLatency(int micros) {
+        Core.DirectoryScanner.simulatedLatencyNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    /**
+     * Drops a loaded model again, so that repeated loads do not pile up in the
+     * shared node registry and name index.
+     */
+    static void unload(Core.FileNode node) {
+        if (node != null) {
+            Core.forgetSubtree(node.self);
+        }
+    }
+
+    private static void write(Path file, int size, Random random) throws IOException {
+        byte[] block = new byte[Math.min(size, 1024 * 1024)];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, Math.min(block.length, size - written));
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package worobella;
+
+import static worobella.Core.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The file manager without its window: scan, du, top, cp, mv, sync, rm and find on the
+ * same scanner, copy and delete engines the window uses. Nothing here loads
+ * JavaFX, so it starts quickly, and an AppCDS archive recorded with
+ * -XX:ArchiveClassesAtExit=cli.jsa and replayed with -XX:SharedArchiveFile=cli.jsa
+ * takes most of the class loading off the start.
+ */
+public final class Cli {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "usage: worobella [options] <command> <args>",
+            "  scan <dir>             lists the whole tree and prints what it found",
+            "  du <dir>               prints the size of every folder down to --depth (default 1)",
+            "  top <dir>              prints the --limit (default 20) largest files and folders",
+            "  cp <source> <dest>     copies a file or a folder",
+            "  mv <source> <dest>     moves a file or a folder, renaming when it can",
+            "  sync <source> <dest>   copies only what is new or changed, --checksum=true compares content",
+            "                         of files that look unchanged, --delete=true removes what source lacks",
+            "  rm <path>...           deletes files and folders",
+            "  find <dir> <pattern>   prints entries whose name matches, * and ? work as in globs",
+            "  dups <dir>             prints groups of files with the same content",
+            "options: --scan-threads=N --copy-threads=N --delete-threads=N --hash-threads=N --copy-mode=files",
+            "         --verify-copies=true --depth=N --limit=N --metrics-interval=SECONDS --jfr-events=true");
+
+    private Cli() {
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> named = new HashMap<>();
+        List<String> unnamed = new ArrayList<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (arg.startsWith("--") && split > 2) {
+                named.put(arg.substring(2, split), arg.substring(split + 1));
+            } else {
+                unnamed.add(arg);
+            }
+        }
+        if (unnamed.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        String threadsParameter = named.get("scan-threads");
+        if (threadsParameter != null) {
+            scanner = new DirectoryScanner(Integer.parseInt(threadsParameter));
+        }
+        String copiesParameter = named.get("copy-threads");
+        if (copiesParameter != null) {
+            copyEngine = new CopyEngine(Integer.parseInt(copiesParameter));
+        }
+        CopyEngine.useFilesCopy = "files".equals(named.get("copy-mode"));
+        CopyEngine.verifyCopies = "true".equals(named.get("verify-copies"));
+        String deletesParameter = named.get("delete-threads");
+        if (deletesParameter != null) {
+            deleteEngine = new DeleteEngine(Integer.parseInt(deletesParameter));
+        }
+        String hashesParameter = named.get("hash-threads");
+        if (hashesParameter != null) {
+            duplicateFinder = new DuplicateFinder(Integer.parseInt(hashesParameter));
+        }
+
+        // off by default, a single command rarely runs long enough for a dump
+        int metricsInterval = Integer.parseInt(named.getOrDefault("metrics-interval", "0"));
+        if (metricsInterval > 0) {
+            metrics.startDumps(metricsInterval);
+        }
+
+        jfrEvents = "true".equals(named.get("jfr-events"));
+
+        String command = unnamed.get(0);
+        List<String> operands = unnamed.subList(1, unnamed.size());
+        int status;
+        switch (command) {
+            case "scan":
+                status = operands.size() == 1 ? scan(operands.get(0)) : usage();
+                break;
+            case "du":
+                status = operands.size() == 1
+                        ? du(operands.get(0), Integer.parseInt(named.getOrDefault("depth", "1")))
+                        : usage();
+                break;
+            case "top":
+                status = operands.size() == 1
+                        ? top(operands.get(0), Integer.parseInt(named.getOrDefault("limit", "20")))
+                        : usage();
+                break;
+            case "cp":
+                status = operands.size() == 2 ? copy(operands.get(0), operands.get(1), false) : usage();
+                break;
+            case "mv":
+                status = operands.size() == 2 ? copy(operands.get(0), operands.get(1), true) : usage();
+                break;
+            case "sync":
+                status = operands.size() == 2
+                        ? sync(operands.get(0), operands.get(1), "true".equals(named.get("checksum")),
+                                "true".equals(named.get("delete")))
+                        : usage();
+                break;
+            case "rm":
+                status = !operands.isEmpty() ? remove(operands) : usage();
+                break;
+            case "find":
+                status = operands.size() == 2
+                        ? find(operands.get(0), operands.get(1), Integer.parseInt(named.getOrDefault("limit", "1000")))
+                        : usage();
+                break;
+            case "dups":
+                status = operands.size() == 1 ? duplicates(operands.get(0)) : usage();
+                break;
+            default:
+                status = usage();
+        }
+        if (metricsInterval > 0) {
+            metrics.dump();
+        }
+        System.exit(status);
+    }
+
+    private static int usage() {
+        System.err.println(USAGE);
+        return 2;
+    }
+
+    /**
+     * Lists the whole tree below dir into the model, or returns null when dir
+     * is not a folder.
+     */
+    private static FileNode open(String dir) {
+        if (!Files.isDirectory(Paths.get(dir))) {
+            System.err.println("Not a folder: " + dir);
+            return null;
+        }
+        prefetchDepth = -1;
+        return populateFileNodes(dir);
+    }
+
+    private static int scan(String dir) {
+        long started = System.nanoTime();
+        FileNode root = open(dir);
+        if (root == null) {
+            return 1;
+        }
+        long size = root.self.computeSize();
+        long folders = new FileTreeIterator(root.self)
+                .filter(fileObj -> fileObj instanceof FolderFileObj)
+                .stream(true)
+                .count();
+        System.out.println(root.self.getFileName() + ": " + folders + " folders, " + root.fileCount
+                + " files, " + size + " bytes in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        return 0;
+    }
+
+    private static int du(String dir, int depth) {
+        FileNode root = open(dir);
+        if (root == null) {
+            return 1;
+        }
+        FileTreeIterator folders = new FileTreeIterator(root.self)
+                .maxDepth(depth)
+                .filter(fileObj -> fileObj instanceof FolderFileObj);
+        while (folders.hasNext()) {
+            FileObj folder = folders.getNext();
+            System.out.println(folder.computeSize() + "\t" + folder.getFileName());
+        }
+        return 0;
+    }
+
+    private static int top(String dir, int limit) {
+        FileNode root = open(dir);
+        if (root == null) {
+            return 1;
+        }
+        DiskUsage usage = DiskUsage.analyze((FolderFileObj) root.self, limit, () -> false);
+        System.out.println("Largest files of " + usage.totalSize + " bytes in " + usage.fileCount + " files:");
+        for (DiskUsage.Entry entry : usage.largestFiles) {
+            System.out.println(entry.size + "\t" + entry.fileObj.getFileName());
+        }
+        System.out.println("Largest folders:");
+        for (DiskUsage.Entry entry : usage.largestFolders) {
+            System.out.println(entry.size + "\t" + entry.fileObj.getFileName());
+        }
+        return 0;
+    }
+
+    /**
+     * Copies or moves source to dest, or into dest when dest is an existing
+     * folder. A move renames when source and dest share a file store, merging
+     * into an existing dest entry by entry, and otherwise deletes source once
+     * everything was copied.
+     */
+    private static int copy(String source, String dest, boolean move) {
+        Path sourcePath = Paths.get(source).toAbsolutePath().normalize();
+        Path destPath = Paths.get(dest).toAbsolutePath().normalize();
+        if (!Files.exists(sourcePath, LinkOption.NOFOLLOW_LINKS)) {
+            System.err.println("No such file or folder: " + source);
+            return 1;
+        }
+        if (Files.isDirectory(destPath)) {
+            destPath = destPath.resolve(sourcePath.getFileName().toString());
+        }
+        if (destPath.startsWith(sourcePath)) {
+            System.err.println("Cannot copy " + sourcePath + " into itself");
+            return 1;
+        }
+        CommandProgress progress = new CommandProgress();
+        int failures;
+        try {
+            int left = move ? CopyEngine.moveIfSameStore(sourcePath, destPath) : -1;
+            if (left >= 0) {
+                opLog.summary("move.done", "src=" + sourcePath + " dst=" + destPath + " renamed=true failed=" + left);
+                return left == 0 ? 0 : 1;
+            }
+            if (Files.isDirectory(sourcePath)) {
+                failures = copyEngine.copyTree(sourcePath, destPath, progress);
+            } else {
+                CopyEngine.copyFile(sourcePath.toFile(), destPath.toFile(), progress);
+                failures = 0;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not copy " + sourcePath + ": " + e.getMessage());
+            return 1;
+        }
+        if (failures > 0) {
+            // a move keeps its source unless every entry made it across
+            System.err.println(failures + " entries could not be copied");
+            return 1;
+        }
+        if (move) {
+            return deleteEngine.deleteTree(sourcePath, new CommandProgress()) == 0 ? 0 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Makes dest a copy of source, touching only what differs. Unlike cp, dest
+     * names the copy itself, so running the same sync again is a no-op.
+     */
+    private static int sync(String source, String dest, boolean checksum, boolean deleteExtras) {
+        Path sourcePath = Paths.get(source).toAbsolutePath().normalize();
+        Path destPath = Paths.get(dest).toAbsolutePath().normalize();
+        if (!Files.exists(sourcePath)) {
+            System.err.println("No such file or folder: " + source);
+            return 1;
+        }
+        if (destPath.startsWith(sourcePath) || sourcePath.startsWith(destPath)) {
+            System.err.println("Cannot sync " + sourcePath + " with " + destPath);
+            return 1;
+        }
+        CommandProgress progress = new CommandProgress();
+        int failures;
+        try {
+            if (Files.isDirectory(sourcePath)) {
+                failures = copyEngine.syncTree(sourcePath, destPath, checksum, deleteExtras, progress);
+            } else {
+                CopyEngine.Sync sync = new CopyEngine.Sync(checksum, false);
+                sync.syncFile(sourcePath, destPath, progress);
+                opLog.summary("sync.done", "src=" + sourcePath + " dst=" + destPath + " " + sync);
+                failures = 0;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not sync " + sourcePath + ": " + e.getMessage());
+            return 1;
+        }
+        if (failures > 0) {
+            System.err.println(failures + " entries could not be synced");
+            return 1;
+        }
+        return 0;
+    }
+
+    private static int remove(List<String> paths) {
+        int failures = 0;
+        for (String path : paths) {
+            Path target = Paths.get(path).toAbsolutePath().normalize();
+            if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                System.err.println("No such file or folder: " + path);
+                failures++;
+                continue;
+            }
+            failures += deleteEngine.deleteTree(target, new CommandProgress());
+        }
+        return failures == 0 ? 0 : 1;
+    }
+
+    private static int find(String dir, String pattern, int limit) {
+        if (open(dir) == null) {
+            return 1;
+        }
+        int found = nameIndex.search(pattern, limit, () -> false, batch -> {
+            for (FileObj fileObj : batch) {
+                System.out.println(fileObj.getFileName());
+            }
+        });
+        return found > 0 ? 0 : 1;
+    }
+
+    private static int duplicates(String dir) {
+        FileNode root = open(dir);
+        if (root == null) {
+            return 1;
+        }
+        duplicateFinder.find((FolderFileObj) root.self, new CommandProgress(), group -> {
+            StringBuilder lines = new StringBuilder();
+            lines.append(group.size()).append(" x ").append(group.get(0).getSize()).append(" bytes");
+            for (SingleFileObj file : group) {
+                lines.append(System.lineSeparator()).append("  ").append(file.getFileName());
+            }
+            // groups arrive from several threads, one println keeps each together
+            System.out.println(lines);
+        });
+        return 0;
+    }
+}
@@ -0,0 +1,3519 @@
+package worobella;
+
+import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * The headless part of the file manager: the loaded file tree, the engines that
+ * scan, copy and delete, and the state they share. The window and the command
+ * line both run on it, and nothing in here touches JavaFX.
+ */
+public final class Core {
+
+    static final NodeRegistry fileNodes = new NodeRegistry();
+    // number of directory levels listed when a tree is opened, -1 scans the whole tree
+    static int prefetchDepth = 1;
+    static DirectoryScanner scanner = new DirectoryScanner(Runtime.getRuntime().availableProcessors() * 2);
+    static CopyEngine copyEngine = new CopyEngine(8);
+    static DeleteEngine deleteEngine = new DeleteEngine(8);
+    static DuplicateFinder duplicateFinder = new DuplicateFinder(Runtime.getRuntime().availableProcessors());
+    static final OperationLog opLog = new OperationLog(1000);
+    static final Metrics metrics = new Metrics();
+    // the first flight recorder event class loads and starts JFR's own machinery,
+    // which would cost a short command line run more than the command itself
+    static boolean jfrEvents = false;
+    static DirectoryWatcher watcher;
+    static Path indexFile;
+    static final NameIndex nameIndex = new NameIndex();
+    static final TrashArea trash = new TrashArea();
+    // runs model changes found in the background; the window hands them to the FX thread
+    static Executor modelUpdates = Runnable::run;
+
+    private Core() {
+    }
+
+    /**
+     * Opens the tree below the given folder: from the index snapshot when one
+     * matches, otherwise by listing the first prefetchDepth levels.
+     */
+    static FileNode populateFileNodes(String rootFolderName) {
+
+        String rootPath = Paths.get(rootFolderName).toAbsolutePath().normalize().toString();
+        ScanEvent event = jfrEvents ? ScanEvent.start(rootPath, prefetchDepth) : null;
+        long entriesBefore = metrics.scanEntries.sum();
+        boolean fromSnapshot = false;
+        try {
+            if (indexFile != null) {
+                List<FileNode> listedDirs = new ArrayList<>();
+                FileNode snapshotRoot = IndexSnapshot.load(rootPath, indexFile, listedDirs);
+                if (snapshotRoot != null) {
+                    fromSnapshot = true;
+                    // the tree can be shown right away, changed directories are relisted behind it
+                    scanner.revalidate(listedDirs);
+                    return snapshotRoot;
+                }
+            }
+            return scanRoot(rootPath);
+        } finally {
+            if (event != null) {
+                event.finish(fromSnapshot, metrics.scanEntries.sum() - entriesBefore);
+            }
+        }
+    }
+
+    private static FileNode scanRoot(String rootPath) {
+        FileObj rootFileObj = new FolderFileObj(rootPath);
+        try {
+            rootFileObj.setAttributes(Files.readAttributes(Paths.get(rootPath), BasicFileAttributes.class));
+        } catch (IOException e) {
+            System.err.println("Could not read " + rootPath + ": " + e.getMessage());
+        }
+        FileNode rootFileNode = new FileNode(rootFileObj);
+        fileNodes.register(rootFileNode);
+        nameIndex.add(rootFileObj);
+
+        // only the first prefetchDepth levels are listed up front, everything
+        // below is listed by loadChildren when a tree item or iterator asks for it
+        scanner.scan(rootFileNode, prefetchDepth);
+        return rootFileNode;
+    }
+
+
+    /**
+     * Lists the directory behind the given node the first time it is needed.
+     * Sub directories get an unloaded FileNode of their own.
+     */
+    static FileNode loadChildren(FileNode node) {
+        if (!node.loaded) {
+            scanner.scan(node, 1);
+        }
+        return node;
+    }
+
+    /**
+     * Takes an entry that left the given directory out of its totals.
+     */
+    static void subtractFromTotals(FileNode parentNode, FileObj fileObj) {
+        FileNode node = fileNodes.get(fileObj.fileId);
+        if (node == null) {
+            parentNode.addToTotals(-fileObj.computeSize(), -1);
+        } else if (node.totalsComplete) {
+            parentNode.addToTotals(-node.subtreeSize, -node.fileCount);
+        } else {
+            parentNode.invalidateTotals();
+        }
+    }
+
+    /**
+     * Drops entries that are gone from a directory's model, its totals and its view.
+     */
+    static void removeChildren(FileNode node, Set<FileObj> removed) {
+        node.removeChildren(removed);
+        for (FileObj child : removed) {
+            subtractFromTotals(node, child);
+            forgetSubtree(child);
+        }
+        if (node.view != null) {
+            node.view.childrenRemoved(removed);
+        }
+    }
+
+    /**
+     * Drops an entry the watcher may have picked up before the command that
+     * created it got to add its own.
+     */
+    static void removeChildNamed(FileNode node, String name) {
+        Set<FileObj> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (FileObj existing : node.children) {
+            if (existing.getShortName().equals(name)) {
+                replaced.add(existing);
+            }
+        }
+        if (!replaced.isEmpty()) {
+            removeChildren(node, replaced);
+        }
+    }
+
+    /**
+     * Adds entries found on disk to a directory's model, its totals and its view.
+     */
+    static void addChildren(FileNode node, List<FileObj> added) {
+        node.addChildren(added);
+        for (FileObj child : added) {
+            if (child instanceof FolderFileObj) {
+                FileNode childNode = new FileNode(child);
+                childNode.parent = node;
+                fileNodes.register(childNode);
+                node.invalidateTotals();
+            } else {
+                node.addToTotals(child.computeSize(), 1);
+            }
+        }
+        nameIndex.addAll(added);
+        if (node.view != null) {
+            node.view.childrenAdded(added);
+        }
+    }
+
+    /**
+     * Takes an entry out of its parent's model, totals and view, whether or
+     * not a view shows it. Entries the watcher already dropped, or
+     * that were never listed, are left alone.
+     */
+    static void removeFromModel(FileObj fileObj) {
+        FolderFileObj parent = fileObj.getParent();
+        FileNode parentNode = parent == null ? null : fileNodes.get(parent.getFileId());
+        if (parentNode == null) {
+            forgetSubtree(fileObj);
+            return;
+        }
+        removeChildNamed(parentNode, fileObj.getShortName());
+    }
+
+    /**
+     * removeFromModel for many entries: siblings go in one removal per parent,
+     * so the view sees one change instead of one per entry.
+     */
+    static void removeFromModel(Collection<FileObj> fileObjs) {
+        Map<FileNode, Set<String>> namesByParent = new IdentityHashMap<>();
+        for (FileObj fileObj : fileObjs) {
+            FolderFileObj parent = fileObj.getParent();
+            FileNode parentNode = parent == null ? null : fileNodes.get(parent.getFileId());
+            if (parentNode == null) {
+                forgetSubtree(fileObj);
+            } else {
+                namesByParent.computeIfAbsent(parentNode, node -> new HashSet<>()).add(fileObj.getShortName());
+            }
+        }
+        namesByParent.forEach((node, names) -> {
+            Set<FileObj> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (FileObj existing : node.children) {
+                if (names.contains(existing.getShortName())) {
+                    removed.add(existing);
+                }
+            }
+            if (!removed.isEmpty()) {
+                removeChildren(node, removed);
+            }
+        });
+    }
+
+    /**
+     * Puts an entry back under its parent, with a fresh FileNode for folders;
+     * the parent's view shows it if there is one.
+     */
+    static void addToModel(FileObj fileObj) {
+        FileNode childNode = fileObj instanceof FolderFileObj ? new FileNode(fileObj) : null;
+        addFileNode(fileObj.getParent(), fileObj, childNode);
+    }
+
+    /**
+     * Moves an entry with a rename on disk and re-hangs it in the model. Fails
+     * rather than replace something that already sits at the target.
+     */
+    static boolean moveEntry(FileObj fileObj, FolderFileObj newParent, String newName) {
+        Path source = Paths.get(fileObj.getFileName());
+        Path target = Paths.get(newParent.getFileName(), newName);
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            opLog.error("move.failed", "src=" + source + " dst=" + target + " error=" + e);
+            return false;
+        }
+        removeFromModel(fileObj);
+        fileObj.moveTo(newParent, newName);
+        addToModel(fileObj);
+        return true;
+    }
+
+    /**
+     * Re-keys the registry for a directory that already carries its new name and
+     * for the loaded directories below it, whose paths follow their parent.
+     */
+    static void relocateSubtree(FileObj fileObj, String oldFileName) {
+        FileNode node = fileNodes.get(fileObj.fileId);
+        if (node == null) {
+            return;
+        }
+        fileNodes.rekey(node, oldFileName);
+        if (watcher != null && node.watchKey != null) {
+            // a watch key keeps the path it was registered with
+            watcher.unregister(node);
+            watcher.register(node);
+        }
+        for (FileObj child : node.children) {
+            if (child instanceof FolderFileObj) {
+                relocateSubtree(child, oldFileName + "/" + child.getShortName());
+            }
+        }
+    }
+
+    /**
+     * Drops the FileNodes of an entry and every loaded entry below it.
+     */
+    static void forgetSubtree(FileObj fileObj) {
+        nameIndex.remove(fileObj);
+        FileNode node = fileNodes.remove(fileObj.fileId);
+        if (node == null) {
+            return;
+        }
+        if (watcher != null) {
+            watcher.unregister(node);
+        }
+        for (FileObj child : node.children) {
+            forgetSubtree(child);
+        }
+    }
+
+    /**
+     * Adds an entry below the given parent. Folders come with their own FileNode,
+     * which may already carry known totals.
+     */
+    static void addFileNode(FileObj parentFileObj, FileObj childFileObj, FileNode childNode) {
+        FileNode fileNode = fileNodes.get(parentFileObj.fileId);
+        if (fileNode == null) {
+            fileNode = new FileNode(parentFileObj);
+            fileNodes.register(fileNode);
+        }
+        if (!fileNode.loaded) {
+            // the directory was never listed, listing it now picks the new entry up from disk
+            loadChildren(fileNode);
+            return;
+        }
+        removeChildNamed(fileNode, childFileObj.getShortName());
+        fileNode.addChildren(Collections.singletonList(childFileObj));
+        nameIndex.add(childFileObj);
+        if (childNode == null) {
+            fileNode.addToTotals(childFileObj.computeSize(), 1);
+        } else {
+            childNode.parent = fileNode;
+            fileNodes.register(childNode);
+            if (childNode.totalsComplete) {
+                fileNode.addToTotals(childNode.subtreeSize, childNode.fileCount);
+            } else {
+                fileNode.invalidateTotals();
+            }
+        }
+        if (fileNode.view != null) {
+            fileNode.view.childrenAdded(Collections.singletonList(childFileObj));
+        }
+    }
+
+    /**
+     * Whatever shows a directory's children. The model tells it about entries
+     * it adds or drops on its own, on the thread that runs modelUpdates.
+     */
+    interface ChildrenView {
+
+        void childrenAdded(List<FileObj> added);
+
+        void childrenRemoved(Set<FileObj> removed);
+    }
+
+    /**
+     * Lists directories with NIO directory streams on a fork-join pool, one task
+     * per directory. Every entry is stat'ed exactly once and the attributes are
+     * kept on its FileObj.
+     */
+    public static class DirectoryScanner {
+
+        // added to every directory listing and every stat, standing in for a slow or
+        // remote file system in benchmarks; 0 everywhere else
+        static volatile long simulatedLatencyNanos = 0;
+
+        private final ForkJoinPool pool;
+
+        DirectoryScanner(int parallelism) {
+            this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+
+        /**
+         * Lists the given node and the unloaded directories below it, down to
+         * maxDepth levels. A negative depth walks the whole tree.
+         */
+        void scan(FileNode node, int maxDepth) {
+            if (maxDepth == 0) {
+                return;
+            }
+            pool.invoke(new ScanTask(node, maxDepth));
+            // the listed part may have completed the totals of the directories above it
+            for (FileNode parent = node.parent; parent != null; parent = parent.parent) {
+                if (!parent.updateTotals()) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Checks directories restored from an index snapshot in the background.
+         * Only a directory whose mtime moved is listed again, and the difference
+         * is applied through modelUpdates like a watcher event.
+         */
+        void revalidate(List<FileNode> dirs) {
+            for (FileNode node : dirs) {
+                pool.execute(() -> {
+                    Path dir = Paths.get(node.self.getFileName());
+                    BasicFileAttributes attributes;
+                    try {
+                        metrics.statCalls.increment();
+                        attributes = Files.readAttributes(dir, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // gone, its parent is relisted because its mtime moved as well
+                        return;
+                    }
+                    if (watcher != null) {
+                        watcher.register(node);
+                    }
+                    if (attributes.lastModifiedTime().toMillis() == node.self.getLastModified()) {
+                        return;
+                    }
+                    try {
+                        Map<String, BasicFileAttributes> listing = DirectoryWatcher.listAttributes(dir);
+                        node.self.setAttributes(attributes);
+                        modelUpdates.execute(() -> DirectoryWatcher.applyChanges(node, listing, true));
+                    } catch (IOException e) {
+                        opLog.error("index.revalidate.failed", "dir=" + dir + " error=" + e);
+                    }
+                });
+            }
+        }
+
+        private static final class ScanTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final FileNode node;
+            private final int depth;
+
+            ScanTask(FileNode node, int depth) {
+                this.node = node;
+                this.depth = depth;
+            }
+
+            @Override
+            protected void compute() {
+                List<FileNode> subDirs = listDirectory(node);
+                if (depth != 1) {
+                    List<ScanTask> tasks = new ArrayList<>(subDirs.size());
+                    for (FileNode subDir : subDirs) {
+                        if (!subDir.totalsComplete) {
+                            tasks.add(new ScanTask(subDir, depth - 1));
+                        }
+                    }
+                    invokeAll(tasks);
+                }
+                // bottom-up: every sub directory task has finished at this point
+                node.updateTotals();
+            }
+        }
+
+        /**
+         * Fills node.children from disk unless that already happened and returns
+         * the FileNodes of the sub directories that still need listing.
+         */
+        private static List<FileNode> listDirectory(FileNode node) {
+            List<FileNode> subDirs = new ArrayList<>();
+            synchronized (node) {
+                if (node.loaded) {
+                    for (FileObj child : node.children) {
+                        FileNode childNode = fileNodes.get(child.fileId);
+                        if (childNode != null) {
+                            subDirs.add(childNode);
+                        }
+                    }
+                    return subDirs;
+                }
+                List<FileObj> children = new ArrayList<>();
+                Path dir = Paths.get(node.self.getFileName());
+                simulateLatency();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path entry : stream) {
+                        FileObj child = createFileObj((FolderFileObj) node.self, entry);
+                        children.add(child);
+                        if (child instanceof FolderFileObj) {
+                            FileNode childNode = new FileNode(child);
+                            childNode.parent = node;
+                            fileNodes.register(childNode);
+                            subDirs.add(childNode);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Could not list " + dir + ": " + e.getMessage());
+                }
+                // one stat per entry, see createFileObj
+                metrics.directoriesListed.increment();
+                metrics.scanEntries.add(children.size());
+                metrics.statCalls.add(children.size());
+                node.setChildren(children);
+                node.loaded = true;
+                nameIndex.addAll(children);
+            }
+            if (watcher != null) {
+                watcher.register(node);
+            }
+            return subDirs;
+        }
+
+        private static FileObj createFileObj(FolderFileObj parent, Path entry) {
+            String name = entry.getFileName().toString();
+            BasicFileAttributes attributes;
+            simulateLatency();
+            try {
+                attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+            } catch (IOException e) {
+                // dangling links and unreadable entries show up as plain files, like File.isDirectory() did
+                return new SingleFileObj(parent, name);
+            }
+            if (attributes.isDirectory()) {
+                return new FolderFileObj(parent, name, attributes);
+            }
+            return new SingleFileObj(parent, name, attributes);
+        }
+
+        private static void simulateLatency() {
+            long nanos = simulatedLatencyNanos;
+            if (nanos > 0) {
+                LockSupport.parkNanos(nanos);
+            }
+        }
+    }
+
+    /**
+     * Copies folder trees as a bounded pipeline: one thread walks the source and
+     * creates the directories in order, while the file copies run on a pool with
+     * a fixed number of batches in flight. Small files are grouped into batches
+     * so a tree of tiny files does not pay a thread hand-off per file.
+     */
+    public static class CopyEngine {
+
+        private static final int BATCH_FILES = 64;
+        private static final long BATCH_BYTES = 8L * 1024 * 1024;
+        // upper bound per transferTo call, small enough to report progress and notice a cancel
+        private static final long TRANSFER_CHUNK = 64L * 1024 * 1024;
+
+        // hand whole files to Files.copy, which newer JDKs map to copy_file_range/reflinks
+        static volatile boolean useFilesCopy = false;
+        // checksum every copy against what was read, this takes precedence over useFilesCopy
+        static volatile boolean verifyCopies = false;
+        private static final int VERIFY_BLOCK = 1024 * 1024;
+        private static final ThreadLocal<ByteBuffer> verifyBuffers = ThreadLocal.withInitial(() ->
+                ByteBuffer.allocateDirect(VERIFY_BLOCK));
+
+        private final ExecutorService copiers;
+        private final int maxInFlight;
+
+        CopyEngine(int concurrentCopies) {
+            int threads = Math.max(1, concurrentCopies);
+            AtomicInteger threadCount = new AtomicInteger();
+            this.copiers = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "copy-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.maxInFlight = threads * 2;
+        }
+
+        /**
+         * Copies the contents of sourceDir into destDir, creating destDir if needed.
+         * Returns the number of entries that could not be copied.
+         */
+        int copyTree(Path sourceDir, Path destDir, CommandProgress progress) {
+            return transferTree(sourceDir, destDir, null, progress);
+        }
+
+        /**
+         * Brings destDir in line with sourceDir: new files are copied, changed
+         * ones rewritten where they differ, and files whose size and mtime match
+         * are skipped unless checksum asks to compare their content as well.
+         * With deleteExtras, entries that only exist below destDir are removed.
+         * Returns the number of entries that could not be synced.
+         */
+        int syncTree(Path sourceDir, Path destDir, boolean checksum, boolean deleteExtras,
+                     CommandProgress progress) {
+            return transferTree(sourceDir, destDir, new Sync(checksum, deleteExtras), progress);
+        }
+
+        private int transferTree(Path sourceDir, Path destDir, Sync sync, CommandProgress progress) {
+            long started = System.nanoTime();
+            Semaphore inFlight = new Semaphore(maxInFlight);
+            AtomicInteger failures = new AtomicInteger();
+            List<Path[]> batch = new ArrayList<>();
+            long[] batchBytes = {0};
+
+            try {
+                Files.walkFileTree(sourceDir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                        new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        if (progress.isCancelled()) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        Path newDir = destDir.resolve(sourceDir.relativize(dir).toString());
+                        try {
+                            Files.createDirectory(newDir);
+                        } catch (FileAlreadyExistsException e) {
+                            // merging into an existing folder
+                            if (sync != null && !Files.isDirectory(newDir)) {
+                                failures.incrementAndGet();
+                                opLog.error("sync.conflict", "dst=" + newDir + " is not a folder");
+                                return FileVisitResult.SKIP_SUBTREE;
+                            }
+                        }
+                        if (sync != null && sync.deleteExtras) {
+                            failures.addAndGet(sync.deleteExtras(dir, newDir, progress));
+                        }
+                        opLog.log("copy.dir", "dst=" + newDir);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (progress.isCancelled()) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        batch.add(new Path[]{file, destDir.resolve(sourceDir.relativize(file).toString())});
+                        batchBytes[0] += attrs.size();
+                        if (batch.size() >= BATCH_FILES || batchBytes[0] >= BATCH_BYTES) {
+                            submitBatch(new ArrayList<>(batch), sync, inFlight, failures, progress);
+                            batch.clear();
+                            batchBytes[0] = 0;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        failures.incrementAndGet();
+                        opLog.error("copy.failed", "src=" + file + " error=" + e);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                opLog.error("copy.failed", "src=" + sourceDir + " error=" + e);
+            }
+            if (!batch.isEmpty() && !progress.isCancelled()) {
+                submitBatch(batch, sync, inFlight, failures, progress);
+            }
+
+            // every copy has finished once all permits are back
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+
+            opLog.summary(sync == null ? "copy.done" : "sync.done", "src=" + sourceDir + " dst=" + destDir
+                    + " files=" + progress.getFilesDone() + " bytes=" + progress.getBytesDone()
+                    + (sync == null ? "" : " " + sync)
+                    + " failed=" + failures.get() + " cancelled=" + progress.isCancelled()
+                    + " ms=" + (System.nanoTime() - started) / 1_000_000);
+            return failures.get();
+        }
+
+        private void submitBatch(List<Path[]> files, Sync sync, Semaphore inFlight, AtomicInteger failures,
+                                 CommandProgress progress) {
+            inFlight.acquireUninterruptibly();
+            copiers.execute(() -> {
+                try {
+                    for (Path[] file : files) {
+                        if (progress.isCancelled()) {
+                            return;
+                        }
+                        try {
+                            if (sync == null) {
+                                copyFile(file[0].toFile(), file[1].toFile(), progress);
+                            } else {
+                                sync.syncFile(file[0], file[1], progress);
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                            opLog.error("copy.failed", "src=" + file[0] + " error=" + e.getMessage());
+                        }
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+
+        /**
+         * Moves source to dest without copying any bytes when both live on the same
+         * file store. A dest that does not exist yet is one atomic rename; an existing
+         * one is merged into entry by entry, see mergeInto. Returns the number of
+         * entries that could not be moved and stay at source, or -1 when the stores
+         * differ and a copy is needed.
+         */
+        static int moveIfSameStore(Path source, Path dest) throws IOException {
+            if (!Files.getFileStore(source).equals(Files.getFileStore(dest.getParent()))) {
+                return -1;
+            }
+            if (Files.exists(dest, LinkOption.NOFOLLOW_LINKS)) {
+                return mergeInto(source, dest);
+            }
+            try {
+                Files.move(source, dest, StandardCopyOption.ATOMIC_MOVE);
+                return 0;
+            } catch (AtomicMoveNotSupportedException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Renames source over an existing dest on the same file store. Folders on
+         * both sides are merged by moving each entry, recursing into the folders
+         * they share; anything else replaces the entry of the same name, as a copy
+         * would. A source folder is removed once it is empty.
+         */
+        private static int mergeInto(Path source, Path dest) {
+            if (!Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)
+                    || !Files.isDirectory(dest, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    Files.move(source, dest, StandardCopyOption.REPLACE_EXISTING);
+                    return 0;
+                } catch (IOException e) {
+                    opLog.error("move.failed", "src=" + source + " dst=" + dest + " error=" + e);
+                    return 1;
+                }
+            }
+            List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+                stream.forEach(entries::add);
+            } catch (IOException e) {
+                opLog.error("move.failed", "src=" + source + " error=" + e);
+                return 1;
+            }
+            int failures = 0;
+            for (Path entry : entries) {
+                failures += mergeInto(entry, dest.resolve(entry.getFileName().toString()));
+            }
+            if (failures == 0) {
+                try {
+                    Files.delete(source);
+                } catch (IOException e) {
+                    opLog.error("move.failed", "src=" + source + " error=" + e);
+                    failures++;
+                }
+            }
+            return failures;
+        }
+
+        /**
+         * Copies one file with a transferTo loop, which the kernel may satisfy with
+         * fewer bytes than asked for, and checks the final size. A partial
+         * destination is removed when the copy is cancelled or comes up short.
+         * Copying a file onto itself fails before anything is truncated.
+         */
+        static void copyFile(File sourceFile, File destFile, CommandProgress progress) throws IOException {
+            if (destFile.exists() && Files.isSameFile(sourceFile.toPath(), destFile.toPath())) {
+                throw new IOException("Cannot copy " + sourceFile + " onto itself");
+            }
+
+            opLog.log("copy.file", "src=" + sourceFile + " dst=" + destFile);
+            CopyFileEvent event = jfrEvents ? CopyFileEvent.start() : null;
+            long started = System.nanoTime();
+            long copied = transfer(sourceFile, destFile, progress);
+            if (copied < 0) {
+                return;
+            }
+            metrics.copyFile.record(System.nanoTime() - started);
+            metrics.copyBytes.add(copied);
+            metrics.copyFiles.increment();
+            progress.addFiles(1);
+            if (event != null) {
+                event.finish(sourceFile, destFile, copied);
+            }
+        }
+
+        /**
+         * Returns the number of bytes copied, or -1 when the copy was cancelled.
+         */
+        private static long transfer(File sourceFile, File destFile, CommandProgress progress) throws IOException {
+            if (verifyCopies) {
+                return transferVerified(sourceFile, destFile, progress);
+            }
+            if (useFilesCopy) {
+                long size = Files.copy(sourceFile.toPath(), destFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING).toFile().length();
+                progress.addBytes(size);
+                return size;
+            }
+
+            boolean complete = false;
+            try (FileChannel sourceChannel = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ);
+                 FileChannel destChannel = FileChannel.open(destFile.toPath(), StandardOpenOption.WRITE,
+                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long size = sourceChannel.size();
+                long position = 0;
+                while (position < size) {
+                    if (progress.isCancelled()) {
+                        return -1;
+                    }
+                    long transferred = sourceChannel.transferTo(position, Math.min(TRANSFER_CHUNK, size - position),
+                            destChannel);
+                    if (transferred <= 0) {
+                        // the source shrank while we were copying it
+                        break;
+                    }
+                    position += transferred;
+                    progress.addBytes(transferred);
+                }
+                if (destChannel.size() != size) {
+                    throw new IOException("Short copy of " + sourceFile + ": wrote " + destChannel.size()
+                            + " of " + size + " bytes");
+                }
+                complete = true;
+                return size;
+            } finally {
+                if (!complete) {
+                    Files.deleteIfExists(destFile.toPath());
+                }
+            }
+        }
+
+        /**
+         * transfer through a buffer instead of transferTo, so the CRC32C of the
+         * source comes from the very bytes that are written. The destination is
+         * then read back once and must have the same CRC32C; a mismatch removes
+         * it and fails the copy. The read back is usually served from the page
+         * cache, so it proves what the file system took, not what reached the disk.
+         */
+        private static long transferVerified(File sourceFile, File destFile, CommandProgress progress)
+                throws IOException {
+            ByteBuffer buffer = verifyBuffers.get();
+            CRC32C sourceChecksum = new CRC32C();
+            boolean complete = false;
+            try (FileChannel sourceChannel = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ);
+                 FileChannel destChannel = FileChannel.open(destFile.toPath(), StandardOpenOption.READ,
+                         StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long size = sourceChannel.size();
+                long position = 0;
+                while (position < size) {
+                    if (progress.isCancelled()) {
+                        return -1;
+                    }
+                    buffer.clear();
+                    int read = sourceChannel.read(buffer);
+                    if (read < 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    sourceChecksum.update(buffer);
+                    buffer.rewind();
+                    while (buffer.hasRemaining()) {
+                        destChannel.write(buffer);
+                    }
+                    position += read;
+                    progress.addBytes(read);
+                }
+                if (destChannel.size() != position || position != size) {
+                    throw new IOException("Short copy of " + sourceFile + ": wrote " + destChannel.size()
+                            + " of " + size + " bytes");
+                }
+
+                CRC32C destChecksum = new CRC32C();
+                for (long readBack = 0; readBack < size; ) {
+                    buffer.clear();
+                    int read = destChannel.read(buffer, readBack);
+                    if (read < 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    destChecksum.update(buffer);
+                    readBack += read;
+                }
+                if (destChecksum.getValue() != sourceChecksum.getValue()) {
+                    metrics.copyMismatches.increment();
+                    opLog.error("copy.mismatch", "src=" + sourceFile + " dst=" + destFile
+                            + " crc32c=" + Long.toHexString(sourceChecksum.getValue())
+                            + " read.back=" + Long.toHexString(destChecksum.getValue()));
+                    throw new IOException("Copy of " + sourceFile + " does not match its source");
+                }
+                complete = true;
+                return size;
+            } finally {
+                if (!complete) {
+                    Files.deleteIfExists(destFile.toPath());
+                }
+            }
+        }
+
+        /**
+         * One sync run: its options, what it did so far, and the per-file work.
+         */
+        static final class Sync {
+
+            // files from this size on are compared block by block instead of copied whole
+            private static final long DELTA_MIN_SIZE = 4L * 1024 * 1024;
+            private static final int DELTA_BLOCK = 1024 * 1024;
+            private static final ThreadLocal<ByteBuffer[]> blocks = ThreadLocal.withInitial(() ->
+                    new ByteBuffer[]{ByteBuffer.allocateDirect(DELTA_BLOCK), ByteBuffer.allocateDirect(DELTA_BLOCK)});
+
+            final boolean checksum;
+            final boolean deleteExtras;
+            private final AtomicInteger copied = new AtomicInteger();
+            private final AtomicInteger updated = new AtomicInteger();
+            private final AtomicInteger skipped = new AtomicInteger();
+            private final AtomicInteger deleted = new AtomicInteger();
+            private final AtomicLong written = new AtomicLong();
+
+            Sync(boolean checksum, boolean deleteExtras) {
+                this.checksum = checksum;
+                this.deleteExtras = deleteExtras;
+            }
+
+            /**
+             * Copies source over dest when it is new or changed. The mtime is
+             * copied along, so the next sync can tell the two are the same.
+             */
+            void syncFile(Path source, Path dest, CommandProgress progress) throws IOException {
+                BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+                BasicFileAttributes destAttributes;
+                try {
+                    destAttributes = Files.readAttributes(dest, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    destAttributes = null;
+                }
+                if (destAttributes != null && destAttributes.isDirectory()) {
+                    throw new IOException(dest + " is a folder");
+                }
+                long size = sourceAttributes.size();
+                boolean unchanged = destAttributes != null && destAttributes.size() == size
+                        && destAttributes.lastModifiedTime().toMillis() == sourceAttributes.lastModifiedTime().toMillis();
+                if (unchanged && !checksum) {
+                    skipped.incrementAndGet();
+                    progress.addBytes(size);
+                    progress.addFiles(1);
+                    return;
+                }
+                if (destAttributes != null && (unchanged || size >= DELTA_MIN_SIZE)) {
+                    long rewritten = rewriteChangedBlocks(source, dest, progress);
+                    if (rewritten < 0) {
+                        return;
+                    }
+                    written.addAndGet(rewritten);
+                    metrics.copyBytes.add(rewritten);
+                    if (rewritten == 0 && destAttributes.size() == size) {
+                        skipped.incrementAndGet();
+                    } else {
+                        updated.incrementAndGet();
+                    }
+                    progress.addFiles(1);
+                } else {
+                    copyFile(source.toFile(), dest.toFile(), progress);
+                    if (progress.isCancelled()) {
+                        return;
+                    }
+                    written.addAndGet(size);
+                    (destAttributes == null ? copied : updated).incrementAndGet();
+                }
+                Files.setLastModifiedTime(dest, sourceAttributes.lastModifiedTime());
+            }
+
+            /**
+             * Reads both files a block at a time and writes only the blocks of
+             * source that differ, then cuts dest to the length of source.
+             * Returns the bytes written, or -1 when the sync was cancelled; a
+             * cancelled file keeps its old mtime, so the next sync looks at it again.
+             */
+            private static long rewriteChangedBlocks(Path source, Path dest, CommandProgress progress)
+                    throws IOException {
+                ByteBuffer[] buffers = blocks.get();
+                ByteBuffer sourceBlock = buffers[0];
+                ByteBuffer destBlock = buffers[1];
+                long rewritten = 0;
+                try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+                     FileChannel destChannel = FileChannel.open(dest, StandardOpenOption.READ,
+                             StandardOpenOption.WRITE)) {
+                    long size = sourceChannel.size();
+                    for (long position = 0; position < size; position += DELTA_BLOCK) {
+                        if (progress.isCancelled()) {
+                            return -1;
+                        }
+                        int length = (int) Math.min(DELTA_BLOCK, size - position);
+                        readBlock(sourceChannel, position, length, sourceBlock);
+                        readBlock(destChannel, position, length, destBlock);
+                        if (!sourceBlock.equals(destBlock)) {
+                            while (sourceBlock.hasRemaining()) {
+                                destChannel.write(sourceBlock, position + sourceBlock.position());
+                            }
+                            rewritten += length;
+                        }
+                        progress.addBytes(length);
+                    }
+                    if (destChannel.size() > size) {
+                        destChannel.truncate(size);
+                    }
+                }
+                return rewritten;
+            }
+
+            /**
+             * Fills the buffer with up to length bytes from position; it holds
+             * fewer when the file ends early.
+             */
+            private static void readBlock(FileChannel channel, long position, int length, ByteBuffer buffer)
+                    throws IOException {
+                buffer.clear();
+                buffer.limit(length);
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position + buffer.position());
+                    if (read < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+            }
+
+            /**
+             * Removes whatever destDir holds that sourceDir does not, and returns
+             * the number of entries that could not be removed.
+             */
+            int deleteExtras(Path sourceDir, Path destDir, CommandProgress progress) {
+                Set<String> names = new HashSet<>();
+                List<Path> extras = new ArrayList<>();
+                try {
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(sourceDir)) {
+                        for (Path entry : stream) {
+                            names.add(entry.getFileName().toString());
+                        }
+                    }
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(destDir)) {
+                        for (Path entry : stream) {
+                            if (!names.contains(entry.getFileName().toString())) {
+                                extras.add(entry);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    opLog.error("sync.failed", "dir=" + destDir + " error=" + e);
+                    return 1;
+                }
+                int failures = 0;
+                for (Path extra : extras) {
+                    // a progress of its own, its bytes are not part of the copy
+                    failures += deleteEngine.deleteTree(extra, new CommandProgress());
+                    deleted.incrementAndGet();
+                }
+                return failures;
+            }
+
+            @Override
+            public String toString() {
+                return "copied=" + copied.get() + " updated=" + updated.get() + " skipped=" + skipped.get()
+                        + " deleted=" + deleted.get() + " written=" + written.get();
+            }
+        }
+    }
+
+    /**
+     * Removes folder trees. One thread walks the tree and hands the files of each
+     * directory to a pool in batches; a directory is removed by whichever thread
+     * finishes the last batch or sub directory inside it. Deletes in different
+     * directories overlap while every directory still goes after its contents.
+     */
+    public static class DeleteEngine {
+
+        private static final int BATCH_FILES = 256;
+
+        private final ExecutorService deleters;
+        private final int maxInFlight;
+
+        DeleteEngine(int concurrentDeletes) {
+            int threads = Math.max(1, concurrentDeletes);
+            AtomicInteger threadCount = new AtomicInteger();
+            this.deleters = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "delete-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.maxInFlight = threads * 2;
+        }
+
+        /**
+         * Deletes a file, a link or a whole folder tree without following links.
+         * Returns the number of entries that could not be deleted; a folder that
+         * keeps some of its contents stays, and so do the folders above it.
+         */
+        int deleteTree(Path root, CommandProgress progress) {
+            long started = System.nanoTime();
+            Semaphore inFlight = new Semaphore(maxInFlight);
+            AtomicInteger failures = new AtomicInteger();
+            Deque<PendingDir> open = new ArrayDeque<>();
+            List<Path> batch = new ArrayList<>();
+            List<Long> batchSizes = new ArrayList<>();
+
+            try {
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (progress.isCancelled()) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        // a batch only ever holds files of the directory on top
+                        flush();
+                        open.push(new PendingDir(dir, open.peek()));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (progress.isCancelled()) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        if (open.isEmpty()) {
+                            // the root itself is a file or a link
+                            deleteFile(file, attrs.size(), null, failures, progress);
+                            return FileVisitResult.CONTINUE;
+                        }
+                        batch.add(file);
+                        batchSizes.add(attrs.size());
+                        if (batch.size() >= BATCH_FILES) {
+                            flush();
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        if (e instanceof NoSuchFileException) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        failures.incrementAndGet();
+                        opLog.error("delete.failed", "path=" + file + " error=" + e);
+                        if (!open.isEmpty()) {
+                            open.peek().incomplete = true;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                        PendingDir pending = open.peek();
+                        if (e != null) {
+                            // the listing broke off, whatever was not seen is still there
+                            failures.incrementAndGet();
+                            opLog.error("delete.failed", "path=" + dir + " error=" + e);
+                            pending.incomplete = true;
+                        }
+                        flush();
+                        open.pop();
+                        release(pending, failures, progress);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    private void flush() {
+                        if (!batch.isEmpty()) {
+                            submitBatch(open.peek(), new ArrayList<>(batch), new ArrayList<>(batchSizes),
+                                    inFlight, failures, progress);
+                            batch.clear();
+                            batchSizes.clear();
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                opLog.error("delete.failed", "path=" + root + " error=" + e);
+            }
+            // a cancelled walk leaves its directories open, they stay on disk
+            while (!open.isEmpty()) {
+                PendingDir pending = open.pop();
+                pending.incomplete = true;
+                release(pending, failures, progress);
+            }
+
+            // every delete has finished once all permits are back
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+
+            opLog.summary("delete.done", "path=" + root + " files=" + progress.getFilesDone()
+                    + " bytes=" + progress.getBytesDone() + " failed=" + failures.get()
+                    + " cancelled=" + progress.isCancelled()
+                    + " ms=" + (System.nanoTime() - started) / 1_000_000);
+            return failures.get();
+        }
+
+        private void submitBatch(PendingDir dir, List<Path> files, List<Long> sizes, Semaphore inFlight,
+                                 AtomicInteger failures, CommandProgress progress) {
+            dir.pending.incrementAndGet();
+            inFlight.acquireUninterruptibly();
+            deleters.execute(() -> {
+                try {
+                    for (int i = 0; i < files.size(); i++) {
+                        if (progress.isCancelled()) {
+                            dir.incomplete = true;
+                            break;
+                        }
+                        deleteFile(files.get(i), sizes.get(i), dir, failures, progress);
+                    }
+                    release(dir, failures, progress);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+
+        private static void deleteFile(Path file, long size, PendingDir dir, AtomicInteger failures,
+                                       CommandProgress progress) {
+            try {
+                Files.delete(file);
+            } catch (NoSuchFileException e) {
+                // someone else got there first
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                opLog.error("delete.failed", "path=" + file + " error=" + e);
+                if (dir != null) {
+                    dir.incomplete = true;
+                }
+                return;
+            }
+            progress.addBytes(size);
+            progress.addFiles(1);
+        }
+
+        /**
+         * Drops one hold on a directory. The thread that drops the last one
+         * removes it and goes on to the parent.
+         */
+        private static void release(PendingDir dir, AtomicInteger failures, CommandProgress progress) {
+            while (dir != null && dir.pending.decrementAndGet() == 0) {
+                boolean deleted = false;
+                if (!dir.incomplete && !progress.isCancelled()) {
+                    try {
+                        Files.delete(dir.dir);
+                        deleted = true;
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                        opLog.error("delete.failed", "path=" + dir.dir + " error=" + e);
+                    }
+                }
+                if (!deleted && dir.parent != null) {
+                    dir.parent.incomplete = true;
+                }
+                dir = dir.parent;
+            }
+        }
+
+        private static final class PendingDir {
+
+            final Path dir;
+            final PendingDir parent;
+            // the walker's own hold plus one per batch and sub directory still in progress
+            final AtomicInteger pending = new AtomicInteger(1);
+            volatile boolean incomplete;
+
+            PendingDir(Path dir, PendingDir parent) {
+                this.dir = dir;
+                this.parent = parent;
+                if (parent != null) {
+                    parent.pending.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds files with the same content below a folder in three stages, each
+     * only looking at what the previous one left: files grouped by the size the
+     * scan already knows, then by a hash of their first and last block, then by
+     * a hash of all of their content. A file whose size is unique is never
+     * opened. Stages run in parallel on a fork-join pool, reading through direct
+     * buffers, and every group goes to the sink as soon as it is confirmed.
+     */
+    public static class DuplicateFinder {
+
+        private static final int BLOCK = 64 * 1024;
+        private static final ThreadLocal<ByteBuffer> buffers =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1024 * 1024));
+        private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        private final ForkJoinPool pool;
+
+        DuplicateFinder(int parallelism) {
+            this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+
+        /**
+         * Hands every group of identical files below root to the sink, from the
+         * pool's threads, largest files first as far as the pool allows. Empty
+         * files and links to the same file are left out. Returns the number of
+         * groups.
+         */
+        int find(FolderFileObj root, CommandProgress progress, Consumer<List<SingleFileObj>> sink) {
+            long started = System.nanoTime();
+            // lists whatever part of the tree is not loaded yet
+            root.computeSize();
+            Map<Long, List<SingleFileObj>> bySize = new FileTreeIterator(root)
+                    .filter(FileTreeIterator.filesOnly())
+                    .stream(true)
+                    .map(fileObj -> (SingleFileObj) fileObj)
+                    .filter(file -> file.getSize() > 0)
+                    .collect(Collectors.groupingByConcurrent(FileObj::getSize));
+            List<List<SingleFileObj>> candidates = new ArrayList<>();
+            long candidateFiles = 0;
+            for (List<SingleFileObj> sameSize : bySize.values()) {
+                if (sameSize.size() > 1) {
+                    candidates.add(sameSize);
+                    candidateFiles += sameSize.size();
+                }
+            }
+            candidates.sort(Comparator.comparingLong((List<SingleFileObj> files) -> files.get(0).getSize()).reversed());
+            progress.setTotal(-1, candidateFiles);
+
+            AtomicInteger groups = new AtomicInteger();
+            AtomicLong wasted = new AtomicLong();
+            pool.submit(() -> candidates.parallelStream().forEach(sameSize -> {
+                if (progress.isCancelled()) {
+                    return;
+                }
+                long size = sameSize.get(0).getSize();
+                List<SingleFileObj> distinct = withoutLinks(sameSize);
+                List<List<SingleFileObj>> samePartials = distinct.size() > 1
+                        ? groupByDigest(distinct, false, progress)
+                        : Collections.emptyList();
+                for (List<SingleFileObj> samePartial : samePartials) {
+                    // the partial hash covered the whole of a small file
+                    List<List<SingleFileObj>> confirmed = size <= 2 * BLOCK
+                            ? Collections.singletonList(samePartial)
+                            : groupByDigest(samePartial, true, progress);
+                    for (List<SingleFileObj> group : confirmed) {
+                        if (!progress.isCancelled()) {
+                            group.sort(Comparator.comparing(FileObj::getFileName));
+                            groups.incrementAndGet();
+                            wasted.addAndGet(size * (group.size() - 1));
+                            sink.accept(group);
+                        }
+                    }
+                }
+                progress.addFiles(sameSize.size());
+            })).join();
+
+            opLog.summary("duplicates.done", "root=" + root.getFileName() + " candidates=" + candidateFiles
+                    + " groups=" + groups.get() + " wasted=" + wasted.get() + " read=" + progress.getBytesDone()
+                    + " cancelled=" + progress.isCancelled() + " ms=" + (System.nanoTime() - started) / 1_000_000);
+            return groups.get();
+        }
+
+        /**
+         * Splits files of one size by content hash, of the first and last block
+         * or of everything, and returns the groups of two or more. Files that
+         * cannot be read, or changed size since the scan, drop out.
+         */
+        private static List<List<SingleFileObj>> groupByDigest(List<SingleFileObj> files, boolean whole,
+                                                               CommandProgress progress) {
+            // digests are compared as ByteBuffers, which compare by content
+            Map<ByteBuffer, List<SingleFileObj>> byDigest = new ConcurrentHashMap<>();
+            files.parallelStream().forEach(file -> {
+                ByteBuffer digest = digest(file, whole, progress);
+                if (digest != null) {
+                    byDigest.computeIfAbsent(digest, d -> Collections.synchronizedList(new ArrayList<>())).add(file);
+                }
+            });
+            List<List<SingleFileObj>> groups = new ArrayList<>();
+            for (List<SingleFileObj> group : byDigest.values()) {
+                if (group.size() > 1) {
+                    groups.add(group);
+                }
+            }
+            return groups;
+        }
+
+        private static ByteBuffer digest(SingleFileObj file, boolean whole, CommandProgress progress) {
+            if (progress.isCancelled()) {
+                return null;
+            }
+            long size = file.getSize();
+            MessageDigest digest = digests.get();
+            digest.reset();
+            // names the platform charset cannot encode back make no valid path
+            try (FileChannel channel = FileChannel.open(Paths.get(file.getFileName()), StandardOpenOption.READ)) {
+                if (channel.size() != size) {
+                    opLog.error("duplicates.changed", "file=" + file.getFileName() + " size=" + channel.size());
+                    return null;
+                }
+                if (whole || size <= 2 * BLOCK) {
+                    read(channel, 0, size, digest, progress);
+                } else {
+                    read(channel, 0, BLOCK, digest, progress);
+                    read(channel, size - BLOCK, BLOCK, digest, progress);
+                }
+            } catch (IOException | InvalidPathException e) {
+                opLog.error("duplicates.failed", "file=" + file.getFileName() + " error=" + e);
+                return null;
+            }
+            return ByteBuffer.wrap(digest.digest());
+        }
+
+        private static void read(FileChannel channel, long position, long length, MessageDigest digest,
+                                 CommandProgress progress) throws IOException {
+            ByteBuffer buffer = buffers.get();
+            long end = position + length;
+            while (position < end && !progress.isCancelled()) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+                progress.addBytes(read);
+            }
+        }
+
+        /**
+         * Keeps one path per file, so that symbolic and hard links to it are
+         * neither read twice nor offered as copies.
+         */
+        private static List<SingleFileObj> withoutLinks(List<SingleFileObj> group) {
+            Set<Object> fileKeys = new HashSet<>();
+            List<SingleFileObj> distinct = new ArrayList<>(group.size());
+            for (SingleFileObj file : group) {
+                Object fileKey = null;
+                try {
+                    metrics.statCalls.increment();
+                    fileKey = Files.readAttributes(Paths.get(file.getFileName()), BasicFileAttributes.class).fileKey();
+                } catch (IOException | InvalidPathException e) {
+                    // keep it, it was readable a moment ago
+                }
+                if (fileKey == null || fileKeys.add(fileKey)) {
+                    distinct.add(file);
+                }
+            }
+            return distinct;
+        }
+    }
+
+    /**
+     * The largest files and folders below a folder, found in one pass over the
+     * model. Each list is a min-heap bounded to k entries, so a tree of millions
+     * of entries is never sorted, and folder sizes are summed bottom-up on the
+     * way. Folders that are not listed yet count as empty and leave the result
+     * incomplete; refine lists them a few levels at a time and looks again.
+     */
+    public static class DiskUsage {
+
+        private static final Comparator<Entry> BY_SIZE = Comparator.comparingLong(entry -> entry.size);
+
+        static final class Entry {
+
+            final FileObj fileObj;
+            final long size;
+
+            Entry(FileObj fileObj, long size) {
+                this.fileObj = fileObj;
+                this.size = size;
+            }
+        }
+
+        private static final class Frame {
+
+            final FileNode node;
+            final List<FileObj> children;
+            int index;
+            long size;
+
+            Frame(FileNode node) {
+                this.node = node;
+                this.children = node.children;
+            }
+        }
+
+        final FolderFileObj root;
+        // largest first
+        final List<Entry> largestFiles;
+        final List<Entry> largestFolders;
+        final long totalSize;
+        final long fileCount;
+        final boolean complete;
+        private final Map<FileObj, Long> folderSizes;
+
+        private DiskUsage(FolderFileObj root, PriorityQueue<Entry> files, PriorityQueue<Entry> folders,
+                          Map<FileObj, Long> folderSizes, long fileCount, boolean complete) {
+            this.root = root;
+            this.largestFiles = drain(files);
+            this.largestFolders = drain(folders);
+            this.folderSizes = folderSizes;
+            this.totalSize = folderSizes.getOrDefault(root, 0L);
+            this.fileCount = fileCount;
+            this.complete = complete;
+        }
+
+        /**
+         * The size of an entry below the root as of this analysis. It never
+         * touches the disk, so the FX thread can call it while painting.
+         */
+        long sizeOf(FileObj fileObj) {
+            if (fileObj instanceof FolderFileObj) {
+                return folderSizes.getOrDefault(fileObj, 0L);
+            }
+            return Math.max(0, fileObj.getSize());
+        }
+
+        /**
+         * Returns null when cancelled part way through.
+         */
+        static DiskUsage analyze(FolderFileObj root, int k, BooleanSupplier cancelled) {
+            PriorityQueue<Entry> files = new PriorityQueue<>(k + 1, BY_SIZE);
+            PriorityQueue<Entry> folders = new PriorityQueue<>(k + 1, BY_SIZE);
+            Map<FileObj, Long> folderSizes = new HashMap<>();
+            FileNode rootNode = fileNodes.get(root.getFileId());
+            if (rootNode == null || !rootNode.loaded) {
+                return new DiskUsage(root, files, folders, folderSizes, 0, false);
+            }
+            boolean complete = true;
+            long fileCount = 0;
+            long visited = 0;
+            Deque<Frame> frames = new ArrayDeque<>();
+            frames.push(new Frame(rootNode));
+            while (!frames.isEmpty()) {
+                if ((++visited & 0xFFF) == 0 && cancelled.getAsBoolean()) {
+                    return null;
+                }
+                Frame frame = frames.peek();
+                List<FileObj> children = frame.children;
+                if (frame.index < children.size()) {
+                    FileObj child = children.get(frame.index++);
+                    if (child instanceof FolderFileObj) {
+                        FileNode childNode = fileNodes.get(child.getFileId());
+                        if (childNode != null && childNode.loaded) {
+                            frames.push(new Frame(childNode));
+                        } else {
+                            complete = false;
+                        }
+                    } else {
+                        long size = Math.max(0, child.computeSize());
+                        frame.size += size;
+                        fileCount++;
+                        offer(files, new Entry(child, size), k);
+                    }
+                    continue;
+                }
+                frames.pop();
+                folderSizes.put(frame.node.self, frame.size);
+                if (!frames.isEmpty()) {
+                    frames.peek().size += frame.size;
+                    offer(folders, new Entry(frame.node.self, frame.size), k);
+                }
+            }
+            return new DiskUsage(root, files, folders, folderSizes, fileCount, complete);
+        }
+
+        /**
+         * Analyzes what the model holds, then lists the rest of the tree in
+         * rounds of doubling depth and analyzes again after each, so updates
+         * get a better picture every round. Returns the last analysis, or null
+         * when cancelled.
+         */
+        static DiskUsage refine(FolderFileObj root, int k, CommandProgress progress, Consumer<DiskUsage> updates) {
+            long started = System.nanoTime();
+            FileNode rootNode = fileNodes.get(root.getFileId());
+            int depth = 2;
+            int rounds = 0;
+            boolean listedAll = false;
+            while (true) {
+                DiskUsage usage = analyze(root, k, progress::isCancelled);
+                rounds++;
+                if (usage == null) {
+                    return null;
+                }
+                updates.accept(usage);
+                // a folder that cannot be listed stays unloaded, the whole-tree round is the last
+                if (usage.complete || rootNode == null || listedAll || progress.isCancelled()) {
+                    opLog.summary("usage.done", "root=" + root.getFileName() + " files=" + usage.fileCount
+                            + " bytes=" + usage.totalSize + " complete=" + usage.complete + " rounds=" + rounds
+                            + " ms=" + (System.nanoTime() - started) / 1_000_000);
+                    return usage;
+                }
+                listedAll = depth > 32;
+                scanner.scan(rootNode, listedAll ? -1 : depth);
+                depth *= 2;
+            }
+        }
+
+        private static void offer(PriorityQueue<Entry> heap, Entry entry, int k) {
+            if (heap.size() < k) {
+                heap.add(entry);
+            } else if (k > 0 && entry.size > heap.peek().size) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+
+        private static List<Entry> drain(PriorityQueue<Entry> heap) {
+            List<Entry> entries = new ArrayList<>(heap.size());
+            while (!heap.isEmpty()) {
+                entries.add(heap.poll());
+            }
+            Collections.reverse(entries);
+            return entries;
+        }
+    }
+
+    /**
+     * Structured "event key=value ..." log lines. Routine events are printed at
+     * most once per interval each, with a count of the lines that were dropped.
+     */
+    public static class OperationLog {
+
+        private final long intervalNanos;
+        private final ConcurrentHashMap<String, EventState> events = new ConcurrentHashMap<>();
+
+        OperationLog(long intervalMillis) {
+            this.intervalNanos = intervalMillis * 1_000_000L;
+        }
+
+        void log(String event, String details) {
+            emit(event, details, System.out);
+        }
+
+        void error(String event, String details) {
+            emit(event, details, System.err);
+        }
+
+        void summary(String event, String details) {
+            System.out.println(event + " " + details);
+        }
+
+        private void emit(String event, String details, PrintStream out) {
+            EventState state = events.computeIfAbsent(event, e -> new EventState());
+            long now = System.nanoTime();
+            long next = state.nextAllowed.get();
+            if (now - next >= 0 && state.nextAllowed.compareAndSet(next, now + intervalNanos)) {
+                long suppressed = state.suppressed.getAndSet(0);
+                out.println(event + " " + details + (suppressed > 0 ? " suppressed=" + suppressed : ""));
+            } else {
+                state.suppressed.incrementAndGet();
+            }
+        }
+
+        private static final class EventState {
+            private final AtomicLong nextAllowed = new AtomicLong(System.nanoTime());
+            private final AtomicLong suppressed = new AtomicLong();
+        }
+    }
+
+    /**
+     * What the metrics look like over JMX, under worobella:type=Metrics. Counters
+     * are totals since start, rates cover the last dump interval.
+     */
+    public interface MetricsMXBean {
+
+        long getScanEntries();
+
+        long getDirectoriesListed();
+
+        long getStatCalls();
+
+        long getCopyBytes();
+
+        long getCopyFiles();
+
+        long getCopyMismatches();
+
+        double getScanEntriesPerSecond();
+
+        double getCopyBytesPerSecond();
+
+        Map<String, LatencySnapshot> getLatencies();
+    }
+
+    /**
+     * Counters and latency histograms for the hot paths. Recording is a LongAdder
+     * or a histogram bucket increment, so the scanner and the copy workers can
+     * record per entry. A daemon thread logs a "metrics" line every interval in
+     * which something happened.
+     */
+    public static class Metrics implements MetricsMXBean {
+
+        private final ConcurrentHashMap<String, Histogram> latencies = new ConcurrentHashMap<>();
+        final LongAdder scanEntries = new LongAdder();
+        final LongAdder directoriesListed = new LongAdder();
+        final LongAdder statCalls = new LongAdder();
+        final LongAdder copyBytes = new LongAdder();
+        final LongAdder copyFiles = new LongAdder();
+        // verified copies whose read back differed from the source
+        final LongAdder copyMismatches = new LongAdder();
+        final Histogram copyFile = latency("copy.file");
+        // how long queued model updates wait for the FX thread, and how long they then keep it busy
+        final Histogram fxDelay = latency("fx.delay");
+        final Histogram fxBusy = latency("fx.busy");
+
+        private long lastDump = System.nanoTime();
+        private long lastScanEntries;
+        private long lastCopyBytes;
+        private long lastRecorded;
+        private volatile double scanEntriesPerSecond;
+        private volatile double copyBytesPerSecond;
+
+        Histogram latency(String name) {
+            return latencies.computeIfAbsent(name, n -> new Histogram());
+        }
+
+        void recordCommand(String name, long nanos) {
+            latency("command." + name).record(nanos);
+        }
+
+        void registerMBean() {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .registerMBean(this, new ObjectName("worobella:type=Metrics"));
+            } catch (JMException e) {
+                System.err.println("Metrics are not available over JMX: " + e.getMessage());
+            }
+        }
+
+        void startDumps(int intervalSeconds) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(this::dump, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Logs everything recorded so far, unless nothing happened since the last dump.
+         */
+        synchronized void dump() {
+            long now = System.nanoTime();
+            double seconds = Math.max(1, now - lastDump) / 1e9;
+            long entries = scanEntries.sum();
+            long bytes = copyBytes.sum();
+            long recorded = 0;
+            for (Histogram histogram : latencies.values()) {
+                recorded += histogram.count();
+            }
+            scanEntriesPerSecond = (entries - lastScanEntries) / seconds;
+            copyBytesPerSecond = (bytes - lastCopyBytes) / seconds;
+            boolean changed = entries != lastScanEntries || bytes != lastCopyBytes || recorded != lastRecorded;
+            lastDump = now;
+            lastScanEntries = entries;
+            lastCopyBytes = bytes;
+            lastRecorded = recorded;
+            if (!changed) {
+                return;
+            }
+            StringBuilder details = new StringBuilder()
+                    .append("scan.entries=").append(entries)
+                    .append(" scan.rate=").append(Math.round(scanEntriesPerSecond))
+                    .append(" dirs=").append(directoriesListed.sum())
+                    .append(" stat=").append(statCalls.sum())
+                    .append(" copy.files=").append(copyFiles.sum())
+                    .append(" copy.bytes=").append(bytes)
+                    .append(" copy.mismatches=").append(copyMismatches.sum())
+                    .append(" copy.rate=").append(Math.round(copyBytesPerSecond));
+            new TreeMap<>(getLatencies()).forEach((name, latency) -> {
+                if (latency.getCount() > 0) {
+                    details.append(' ').append(name).append("=").append(latency);
+                }
+            });
+            opLog.summary("metrics", details.toString());
+        }
+
+        @Override
+        public long getScanEntries() {
+            return scanEntries.sum();
+        }
+
+        @Override
+        public long getDirectoriesListed() {
+            return directoriesListed.sum();
+        }
+
+        @Override
+        public long getStatCalls() {
+            return statCalls.sum();
+        }
+
+        @Override
+        public long getCopyBytes() {
+            return copyBytes.sum();
+        }
+
+        @Override
+        public long getCopyFiles() {
+            return copyFiles.sum();
+        }
+
+        @Override
+        public long getCopyMismatches() {
+            return copyMismatches.sum();
+        }
+
+        @Override
+        public double getScanEntriesPerSecond() {
+            return scanEntriesPerSecond;
+        }
+
+        @Override
+        public double getCopyBytesPerSecond() {
+            return copyBytesPerSecond;
+        }
+
+        @Override
+        public Map<String, LatencySnapshot> getLatencies() {
+            Map<String, LatencySnapshot> snapshots = new HashMap<>();
+            latencies.forEach((name, histogram) -> snapshots.put(name, histogram.snapshot()));
+            return snapshots;
+        }
+    }
+
+    /**
+     * Latencies in power-of-two microsecond buckets, so percentiles are exact to
+     * a factor of two and recording never allocates or locks.
+     */
+    static final class Histogram {
+
+        private static final int BUCKETS = 40;
+
+        // bucket i holds values below 2^i microseconds and at least half of that
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder totalMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            totalMicros.add(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        LatencySnapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                count += counts[i];
+            }
+            long max = maxMicros.get();
+            return new LatencySnapshot(count, count == 0 ? 0 : totalMicros.sum() / count,
+                    percentile(counts, count, 0.5, max), percentile(counts, count, 0.99, max), max);
+        }
+
+        private static long percentile(long[] counts, long count, double fraction, long max) {
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * One histogram as JMX shows it, and as count/p50/p99/max in the log.
+     */
+    public static class LatencySnapshot {
+
+        private final long count;
+        private final long meanMicros;
+        private final long p50Micros;
+        private final long p99Micros;
+        private final long maxMicros;
+
+        LatencySnapshot(long count, long meanMicros, long p50Micros, long p99Micros, long maxMicros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return count + "/" + p50Micros + "/" + p99Micros + "/" + maxMicros + "us";
+        }
+    }
+
+    /**
+     * Flight recorder events for the operations that are slow on large or remote
+     * trees. They are created while jfrEvents is set and recorded by any running
+     * recording, e.g. one from -XX:StartFlightRecording or jcmd JFR.start.
+     */
+    @Name("worobella.Scan")
+    @Label("Open Tree")
+    @Category("Worobella")
+    static class ScanEvent extends Event {
+
+        @Label("Path")
+        String path;
+
+        @Label("Prefetch Depth")
+        int depth;
+
+        @Label("From Snapshot")
+        boolean fromSnapshot;
+
+        // counts entries any scan listed meanwhile, which is this one unless others overlap
+        @Label("Entries Listed")
+        long entries;
+
+        static ScanEvent start(String path, int depth) {
+            ScanEvent event = new ScanEvent();
+            event.path = path;
+            event.depth = depth;
+            event.begin();
+            return event;
+        }
+
+        void finish(boolean fromSnapshot, long entries) {
+            this.fromSnapshot = fromSnapshot;
+            this.entries = entries;
+            commit();
+        }
+    }
+
+    @Name("worobella.CopyFile")
+    @Label("Copy File")
+    @Category("Worobella")
+    @Threshold("10 ms")
+    static class CopyFileEvent extends Event {
+
+        @Label("Source")
+        String source;
+
+        @Label("Destination")
+        String destination;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        static CopyFileEvent start() {
+            CopyFileEvent event = new CopyFileEvent();
+            event.begin();
+            return event;
+        }
+
+        void finish(File source, File destination, long bytes) {
+            // the threshold is checked against the duration end() takes
+            end();
+            if (shouldCommit()) {
+                this.source = source.getPath();
+                this.destination = destination.getPath();
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    @Name("worobella.ComputeSize")
+    @Label("Compute Size")
+    @Category("Worobella")
+    static class SizeEvent extends Event {
+
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Files")
+        long files;
+
+        static SizeEvent start() {
+            SizeEvent event = new SizeEvent();
+            event.begin();
+            return event;
+        }
+
+        void finish(String path, long bytes, long files) {
+            this.path = path;
+            this.bytes = bytes;
+            this.files = files;
+            commit();
+        }
+    }
+
+    /**
+     * Keeps loaded directories in sync with the disk. Events are coalesced per
+     * directory for a short window, stat'ed on the watcher thread, and applied as
+     * one batch through modelUpdates. An OVERFLOW, or a burst touching too many names
+     * in one directory, turns into a rescan of just that directory. Events are
+     * matched to their directory through the registry's path index.
+     */
+    public static class DirectoryWatcher {
+
+        private static final int RESCAN_THRESHOLD = 512;
+
+        private final WatchService watchService;
+        private final long windowMillis;
+
+        DirectoryWatcher(long windowMillis) throws IOException {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            this.windowMillis = windowMillis;
+            Thread thread = new Thread(this::processEvents, "fs-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void register(FileNode node) {
+            if (node.watchKey != null) {
+                return;
+            }
+            try {
+                WatchKey key = Paths.get(node.self.getFileName()).register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                node.watchKey = key;
+            } catch (IOException e) {
+                opLog.error("watch.failed", "dir=" + node.self.getFileName() + " error=" + e);
+            }
+        }
+
+        void unregister(FileNode node) {
+            WatchKey key = node.watchKey;
+            if (key != null) {
+                key.cancel();
+                node.watchKey = null;
+            }
+        }
+
+        private void processEvents() {
+            Map<FileNode, Set<String>> changedNames = new HashMap<>();
+            Set<FileNode> rescans = new HashSet<>();
+            while (true) {
+                try {
+                    WatchKey key = watchService.take();
+                    long deadline = System.currentTimeMillis() + windowMillis;
+                    while (key != null) {
+                        collect(key, changedNames, rescans);
+                        long remaining = deadline - System.currentTimeMillis();
+                        key = remaining > 0 ? watchService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    }
+                    flush(changedNames, rescans);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (ClosedWatchServiceException e) {
+                    return;
+                }
+                changedNames.clear();
+                rescans.clear();
+            }
+        }
+
+        private void collect(WatchKey key, Map<FileNode, Set<String>> changedNames, Set<FileNode> rescans) {
+            FileNode node = fileNodes.getByPath(key.watchable().toString());
+            if (node != null && node.watchKey != key) {
+                // a key that was cancelled or replaced after a rename
+                node = null;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (node == null) {
+                    continue;
+                }
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescans.add(node);
+                } else {
+                    Set<String> names = changedNames.computeIfAbsent(node, n -> new HashSet<>());
+                    names.add(event.context().toString());
+                    if (names.size() > RESCAN_THRESHOLD) {
+                        rescans.add(node);
+                    }
+                }
+            }
+            // a directory that is gone invalidates its key, its parent sees the delete
+            key.reset();
+        }
+
+        private void flush(Map<FileNode, Set<String>> changedNames, Set<FileNode> rescans) {
+            List<Runnable> updates = new ArrayList<>();
+            for (FileNode node : rescans) {
+                Map<String, BasicFileAttributes> listing;
+                try {
+                    listing = listAttributes(Paths.get(node.self.getFileName()));
+                } catch (IOException e) {
+                    continue;
+                }
+                updates.add(() -> applyChanges(node, listing, true));
+            }
+            for (Map.Entry<FileNode, Set<String>> entry : changedNames.entrySet()) {
+                FileNode node = entry.getKey();
+                if (rescans.contains(node)) {
+                    continue;
+                }
+                Path dir = Paths.get(node.self.getFileName());
+                Map<String, BasicFileAttributes> observed = new HashMap<>();
+                for (String name : entry.getValue()) {
+                    observed.put(name, readAttributes(dir.resolve(name)));
+                }
+                updates.add(() -> applyChanges(node, observed, false));
+            }
+            if (!updates.isEmpty()) {
+                opLog.log("watch.batch", "dirs=" + updates.size() + " rescans=" + rescans.size());
+                modelUpdates.execute(() -> updates.forEach(Runnable::run));
+            }
+        }
+
+        static Map<String, BasicFileAttributes> listAttributes(Path dir) throws IOException {
+            Map<String, BasicFileAttributes> listing = new HashMap<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    listing.put(entry.getFileName().toString(), readAttributes(entry));
+                }
+            }
+            return listing;
+        }
+
+        private static BasicFileAttributes readAttributes(Path entry) {
+            metrics.statCalls.increment();
+            try {
+                return Files.readAttributes(entry, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Brings one directory in line with what was observed on disk, a null value
+         * meaning the name is gone. A complete listing also drops unlisted children.
+         * Runs through modelUpdates.
+         */
+        private static void applyChanges(FileNode node, Map<String, BasicFileAttributes> observed,
+                                         boolean complete) {
+            if (fileNodes.get(node.self.fileId) != node || !node.loaded) {
+                return;
+            }
+            Map<String, FileObj> byName = new HashMap<>();
+            for (FileObj child : node.children) {
+                byName.put(child.getShortName(), child);
+            }
+            Set<FileObj> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+            List<FileObj> added = new ArrayList<>();
+            FolderFileObj folder = (FolderFileObj) node.self;
+            for (Map.Entry<String, BasicFileAttributes> entry : observed.entrySet()) {
+                FileObj existing = byName.remove(entry.getKey());
+                BasicFileAttributes attributes = entry.getValue();
+                if (attributes == null) {
+                    if (existing != null) {
+                        removed.add(existing);
+                    }
+                    continue;
+                }
+                if (existing != null && (existing instanceof FolderFileObj) == attributes.isDirectory()) {
+                    if (existing instanceof SingleFileObj) {
+                        long oldSize = existing.getSize();
+                        existing.setAttributes(attributes);
+                        if (oldSize >= 0) {
+                            node.addToTotals(attributes.size() - oldSize, 0);
+                        } else {
+                            node.invalidateTotals();
+                        }
+                    }
+                    continue;
+                }
+                if (existing != null) {
+                    removed.add(existing);
+                }
+                added.add(attributes.isDirectory()
+                        ? new FolderFileObj(folder, entry.getKey(), attributes)
+                        : new SingleFileObj(folder, entry.getKey(), attributes));
+            }
+            if (complete) {
+                removed.addAll(byName.values());
+            }
+            if (!removed.isEmpty()) {
+                removeChildren(node, removed);
+            }
+            if (!added.isEmpty()) {
+                addChildren(node, added);
+            }
+        }
+    }
+
+    /**
+     * Binary snapshot of the loaded FileNode tree, written on exit and memory
+     * mapped on the next start. Layout, all big-endian:
+     * <pre>
+     * int magic, int version, long crc32 of body, body:
+     *   record = byte kind, short nameLength, name (UTF-8), long size, long mtime,
+     *            and for a listed folder: int childCount, child records
+     * </pre>
+     * The root record carries the whole root path as its name. Anything that does
+     * not check out makes load return null, and the caller does a normal scan.
+     */
+    public static class IndexSnapshot {
+
+        private static final int MAGIC = 0x464D4958;
+        private static final int VERSION = 1;
+        private static final int HEADER_BYTES = 16;
+
+        private static final byte FILE = 0;
+        private static final byte FOLDER = 1;
+        private static final byte LISTED_FOLDER = 2;
+
+        static Path defaultLocation(String rootFolderName) {
+            String rootPath = Paths.get(rootFolderName).toAbsolutePath().normalize().toString();
+            return Paths.get(System.getProperty("user.home"), ".worobella",
+                    "index-" + Integer.toHexString(rootPath.hashCode()) + ".bin");
+        }
+
+        static void save(FileNode root, Path file) {
+            long started = System.nanoTime();
+            try {
+                Files.createDirectories(file.getParent());
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                CRC32 crc = new CRC32();
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                     DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                             new BufferedOutputStream(Channels.newOutputStream(
+                                     channel.position(HEADER_BYTES)), 1 << 16), crc))) {
+                    writeRecord(out, root.self, root.self.getFileName());
+                    out.flush();
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                    header.putInt(MAGIC).putInt(VERSION).putLong(crc.getValue()).flip();
+                    channel.write(header, 0);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                opLog.summary("index.saved", "file=" + file + " bytes=" + Files.size(file)
+                        + " ms=" + (System.nanoTime() - started) / 1_000_000);
+            } catch (IOException e) {
+                opLog.error("index.save.failed", "file=" + file + " error=" + e);
+            }
+        }
+
+        private static void writeRecord(DataOutputStream out, FileObj fileObj, String name) throws IOException {
+            FileNode node = fileNodes.get(fileObj.fileId);
+            boolean listed = node != null && node.loaded;
+            out.writeByte(fileObj instanceof SingleFileObj ? FILE : listed ? LISTED_FOLDER : FOLDER);
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(nameBytes.length);
+            out.write(nameBytes);
+            out.writeLong(fileObj instanceof SingleFileObj ? fileObj.computeSize() : 0);
+            out.writeLong(fileObj.getLastModified());
+            if (listed) {
+                List<FileObj> children = new ArrayList<>(node.children);
+                out.writeInt(children.size());
+                for (FileObj child : children) {
+                    writeRecord(out, child, child.getShortName());
+                }
+            }
+        }
+
+        /**
+         * Rebuilds the FileNode tree for rootPath from the snapshot and registers it.
+         * Listed directories are added to listedDirs for revalidation.
+         */
+        static FileNode load(String rootPath, Path file, List<FileNode> listedDirs) {
+            if (!Files.isRegularFile(file)) {
+                return null;
+            }
+            long started = System.nanoTime();
+            List<FileNode> nodes = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                    throw new IOException("unknown format");
+                }
+                long expectedCrc = buffer.getLong();
+                CRC32 crc = new CRC32();
+                crc.update(buffer.duplicate());
+                if (crc.getValue() != expectedCrc) {
+                    throw new IOException("checksum mismatch");
+                }
+                FileObj rootFileObj = readRecord(buffer, null, nodes);
+                if (!(rootFileObj instanceof FolderFileObj) || !rootFileObj.getFileName().equals(rootPath)) {
+                    throw new IOException("snapshot is for another root");
+                }
+            } catch (IOException | RuntimeException e) {
+                opLog.error("index.load.failed", "file=" + file + " error=" + e);
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                    // the next save overwrites it anyway
+                }
+                return null;
+            }
+            for (FileNode node : nodes) {
+                fileNodes.register(node);
+                nameIndex.add(node.self);
+                nameIndex.addAll(node.children);
+                if (node.loaded) {
+                    listedDirs.add(node);
+                }
+            }
+            // children come before their parent in nodes, so this fills the totals bottom-up
+            for (FileNode node : nodes) {
+                node.updateTotals();
+            }
+            opLog.summary("index.loaded", "file=" + file + " dirs=" + nodes.size()
+                    + " ms=" + (System.nanoTime() - started) / 1_000_000);
+            return nodes.get(nodes.size() - 1);
+        }
+
+        private static FileObj readRecord(ByteBuffer buffer, FolderFileObj parent, List<FileNode> nodes)
+                throws IOException {
+            byte kind = buffer.get();
+            byte[] nameBytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            long size = buffer.getLong();
+            long lastModified = buffer.getLong();
+
+            if (kind == FILE) {
+                FileObj fileObj = new SingleFileObj(parent, name);
+                fileObj.setSize(size);
+                fileObj.setLastModified(lastModified);
+                return fileObj;
+            }
+            if (kind != FOLDER && kind != LISTED_FOLDER) {
+                throw new IOException("bad record kind " + kind);
+            }
+            FolderFileObj folder = parent == null ? new FolderFileObj(name) : new FolderFileObj(parent, name);
+            folder.setLastModified(lastModified);
+            FileNode node = new FileNode(folder);
+            if (kind == LISTED_FOLDER) {
+                int childCount = buffer.getInt();
+                List<FileObj> children = new ArrayList<>(childCount);
+                for (int i = 0; i < childCount; i++) {
+                    FileObj child = readRecord(buffer, folder, nodes);
+                    children.add(child);
+                    if (child instanceof FolderFileObj) {
+                        nodes.get(nodes.size() - 1).parent = node;
+                    }
+                }
+                node.setChildren(children);
+                node.loaded = true;
+            }
+            nodes.add(node);
+            return folder;
+        }
+    }
+
+    public interface FileNodeIterator {
+
+        boolean hasNext();
+
+        FileObj getNext();
+
+        void reset();
+
+        Spliterator<FileObj> spliterator();
+
+        default Stream<FileObj> stream(boolean parallel) {
+            return StreamSupport.stream(spliterator(), parallel);
+        }
+
+    }
+
+    /**
+     * Walks the root and everything below it without building a list first.
+     * Directories are listed lazily as the walk reaches them. Depth limits prune
+     * the walk itself, the filter decides which entries are handed out.
+     */
+    public static class FileTreeIterator implements FileNodeIterator {
+
+        public enum Order {
+            DFS, BFS
+        }
+
+        private final FileObj rootFolder;
+        private Order order = Order.BFS;
+        private Predicate<FileObj> filter = fileObj -> true;
+        private int maxDepth = -1;
+        private FileTreeCursor cursor;
+        private FileObj next;
+
+        FileTreeIterator(FileObj rootFolder) {
+            this.rootFolder = rootFolder;
+        }
+
+        FileTreeIterator order(Order order) {
+            this.order = order;
+            return this;
+        }
+
+        FileTreeIterator filter(Predicate<FileObj> filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * Stops descending below the given depth, the root being depth 0. -1 means no limit.
+         */
+        FileTreeIterator maxDepth(int maxDepth) {
+            this.maxDepth = maxDepth;
+            return this;
+        }
+
+        static Predicate<FileObj> filesOnly() {
+            return fileObj -> fileObj instanceof SingleFileObj;
+        }
+
+        static Predicate<FileObj> withExtension(String extension) {
+            String suffix = "." + extension;
+            return fileObj -> fileObj instanceof SingleFileObj && fileObj.getShortName().endsWith(suffix);
+        }
+
+        static Predicate<FileObj> largerThan(long bytes) {
+            return fileObj -> fileObj instanceof SingleFileObj && fileObj.computeSize() > bytes;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                if (cursor == null) {
+                    cursor = new FileTreeCursor(rootFolder, order, filter, maxDepth);
+                }
+                next = cursor.advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public FileObj getNext() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            FileObj current = next;
+            next = null;
+            return current;
+        }
+
+        @Override
+        public void reset() {
+            cursor = null;
+            next = null;
+        }
+
+        @Override
+        public Spliterator<FileObj> spliterator() {
+            return new FileTreeCursor(rootFolder, order, filter, maxDepth);
+        }
+    }
+
+    /**
+     * The walk state behind FileTreeIterator: an explicit stack (DFS) or queue
+     * (BFS) of directory frames, each an index range into a node's children.
+     * Splitting hands whole pending frames, or half of one frame's remaining
+     * children, to another cursor, so parallel streams spread subtrees over cores.
+     * Split cursors do not keep the encounter order.
+     */
+    private static final class FileTreeCursor implements Spliterator<FileObj> {
+
+        private final FileTreeIterator.Order order;
+        private final Predicate<FileObj> filter;
+        private final int maxDepth;
+        private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        private FileObj pendingRoot;
+
+        FileTreeCursor(FileObj root, FileTreeIterator.Order order, Predicate<FileObj> filter, int maxDepth) {
+            this(order, filter, maxDepth);
+            this.pendingRoot = root;
+            FileNode rootNode = fileNodes.get(root.fileId);
+            if (rootNode != null && maxDepth != 0) {
+                List<FileObj> children = loadChildren(rootNode).children;
+                frames.add(new Frame(children, 0, children.size(), 0));
+            }
+        }
+
+        private FileTreeCursor(FileTreeIterator.Order order, Predicate<FileObj> filter, int maxDepth) {
+            this.order = order;
+            this.filter = filter;
+            this.maxDepth = maxDepth;
+        }
+
+        FileObj advance() {
+            if (pendingRoot != null) {
+                FileObj root = pendingRoot;
+                pendingRoot = null;
+                if (filter.test(root)) {
+                    return root;
+                }
+            }
+            while (!frames.isEmpty()) {
+                boolean dfs = order == FileTreeIterator.Order.DFS;
+                Frame frame = dfs ? frames.peekLast() : frames.peekFirst();
+                if (frame.index >= frame.end) {
+                    if (dfs) {
+                        frames.pollLast();
+                    } else {
+                        frames.pollFirst();
+                    }
+                    continue;
+                }
+                FileObj child = frame.children.get(frame.index++);
+                int childDepth = frame.depth + 1;
+                if (child instanceof FolderFileObj && (maxDepth < 0 || childDepth < maxDepth)) {
+                    FileNode childNode = fileNodes.get(child.fileId);
+                    if (childNode != null) {
+                        List<FileObj> grandChildren = loadChildren(childNode).children;
+                        frames.addLast(new Frame(grandChildren, 0, grandChildren.size(), childDepth));
+                    }
+                }
+                if (filter.test(child)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super FileObj> action) {
+            FileObj fileObj = advance();
+            if (fileObj == null) {
+                return false;
+            }
+            action.accept(fileObj);
+            return true;
+        }
+
+        @Override
+        public Spliterator<FileObj> trySplit() {
+            FileTreeCursor split = new FileTreeCursor(order, filter, maxDepth);
+            if (frames.size() > 1) {
+                // the oldest frames hold the largest pending subtrees
+                for (int i = frames.size() / 2; i > 0; i--) {
+                    split.frames.add(frames.pollFirst());
+                }
+                return split;
+            }
+            Frame frame = frames.peekFirst();
+            if (frame == null || frame.end - frame.index < 2) {
+                return null;
+            }
+            int middle = frame.index + (frame.end - frame.index) / 2;
+            split.frames.add(new Frame(frame.children, middle, frame.end, frame.depth));
+            frame.end = middle;
+            return split;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL;
+        }
+
+        private static final class Frame {
+
+            private final List<FileObj> children;
+            private int index;
+            private int end;
+            private final int depth;
+
+            Frame(List<FileObj> children, int index, int end, int depth) {
+                this.children = children;
+                this.index = index;
+                this.end = end;
+                this.depth = depth;
+            }
+        }
+    }
+
+    /**
+     * In-memory index over the short names of every listed entry, lower-cased
+     * and kept in slots. A trigram table maps each three character sequence to
+     * the ascending slots whose name contains it, so substring and glob queries
+     * only look at candidates, and a sorted copy of the names answers prefix
+     * queries with a binary search. Both are brought up to date by the next
+     * query rather than on every add, which keeps indexing off the scan path.
+     * Removing an entry leaves a dead slot behind until enough of them pile up
+     * to compact the index.
+     */
+    public static class NameIndex {
+
+        private static final int BATCH = 256;
+        private static final int CANCEL_CHECK = 4096;
+        // dead slots tolerated before compacting, as long as they are not the majority
+        private static final int COMPACT_MIN_DEAD = 4096;
+        // names added since the last sort that a prefix query scans before sorting again
+        private static final int RESORT_MIN_UNSORTED = 4096;
+
+        private FileObj[] entries = new FileObj[1024];
+        private String[] names = new String[1024];
+        private int count;
+        private int dead;
+        private final HashMap<Long, Postings> trigrams = new HashMap<>();
+        // slots below postedCount are in the trigram table
+        private int postedCount;
+        // slots below sortedCount in name order, slots added since then are scanned linearly
+        private int[] sorted = new int[0];
+        private String[] sortedNames = new String[0];
+        private int sortedCount;
+
+        synchronized void add(FileObj fileObj) {
+            if (fileObj.indexSlot >= 0) {
+                return;
+            }
+            if (count == entries.length) {
+                entries = Arrays.copyOf(entries, count * 2);
+                names = Arrays.copyOf(names, count * 2);
+            }
+            int slot = count++;
+            String name = fileObj.getShortName().toLowerCase(Locale.ROOT);
+            entries[slot] = fileObj;
+            names[slot] = name;
+            fileObj.indexSlot = slot;
+        }
+
+        synchronized void addAll(Collection<FileObj> fileObjs) {
+            for (FileObj fileObj : fileObjs) {
+                add(fileObj);
+            }
+        }
+
+        synchronized void remove(FileObj fileObj) {
+            int slot = fileObj.indexSlot;
+            if (slot < 0 || entries[slot] != fileObj) {
+                return;
+            }
+            entries[slot] = null;
+            names[slot] = null;
+            fileObj.indexSlot = -1;
+            dead++;
+            if (dead > COMPACT_MIN_DEAD && dead > count / 2) {
+                compact();
+            }
+        }
+
+        /**
+         * Re-indexes an entry after its short name changed.
+         */
+        synchronized void rename(FileObj fileObj) {
+            int slot = fileObj.indexSlot;
+            if (slot >= 0 && fileObj.getShortName().toLowerCase(Locale.ROOT).equals(names[slot])) {
+                return;
+            }
+            remove(fileObj);
+            add(fileObj);
+        }
+
+        synchronized int size() {
+            return count - dead;
+        }
+
+        /**
+         * Indexes everything added since the last query, so the next one does not have to.
+         */
+        synchronized void catchUp() {
+            postTrigrams();
+            if (count > sortedCount) {
+                sortNames();
+            }
+        }
+
+        /**
+         * Finds entries whose name matches the query, ignoring case. A query
+         * without wildcards matches anywhere in the name; with * or ? it is a
+         * glob over the whole name. Matches are collected under the index's lock
+         * until the limit is reached or the query is cancelled, and go to the
+         * sink in batches once the lock is released, so a slow sink never holds
+         * up add or remove. Returns the number of matches.
+         */
+        int search(String query, int limit, BooleanSupplier cancelled, Consumer<List<FileObj>> sink) {
+            Results results = new Results(limit, cancelled);
+            synchronized (this) {
+                collect(query, results);
+            }
+            for (List<FileObj> batch : results.batches) {
+                if (cancelled.getAsBoolean()) {
+                    break;
+                }
+                sink.accept(batch);
+            }
+            return results.found;
+        }
+
+        private void collect(String query, Results results) {
+            String pattern = query.toLowerCase(Locale.ROOT);
+            if (pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0) {
+                pattern = "*" + pattern + "*";
+            }
+            String core = pattern.replaceAll("^\\*+|\\*+$", "");
+            boolean anchoredStart = !pattern.startsWith("*");
+            boolean anchoredEnd = !pattern.endsWith("*");
+            Predicate<String> matches;
+            if (core.indexOf('*') >= 0 || core.indexOf('?') >= 0) {
+                java.util.regex.Pattern regex = globPattern(pattern);
+                matches = name -> regex.matcher(name).matches();
+            } else if (anchoredStart && anchoredEnd) {
+                matches = core::equals;
+            } else if (anchoredStart) {
+                matches = name -> name.startsWith(core);
+            } else if (anchoredEnd) {
+                matches = name -> name.endsWith(core);
+            } else {
+                matches = name -> name.contains(core);
+            }
+
+            if (anchoredStart && core.indexOf('*') < 0 && core.indexOf('?') < 0) {
+                searchPrefix(core, matches, results);
+            } else {
+                String literal = "";
+                for (String run : core.split("[*?]")) {
+                    if (run.length() > literal.length()) {
+                        literal = run;
+                    }
+                }
+                searchCandidates(literal, matches, results);
+            }
+            results.flush();
+        }
+
+        private void searchPrefix(String prefix, Predicate<String> matches, Results results) {
+            if (count - sortedCount > Math.max(RESORT_MIN_UNSORTED, sortedCount / 4)) {
+                sortNames();
+            }
+            int low = 0;
+            int high = sortedCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sortedNames[mid].compareTo(prefix) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int i = low; i < sortedCount && sortedNames[i].startsWith(prefix); i++) {
+                int slot = sorted[i];
+                if (names[slot] != null && matches.test(names[slot]) && !results.offer(entries[slot])) {
+                    return;
+                }
+            }
+            scanSlots(sortedCount, matches, results);
+        }
+
+        private void searchCandidates(String literal, Predicate<String> matches, Results results) {
+            if (literal.length() < 3) {
+                String filter = literal;
+                scanSlots(0, name -> name.contains(filter) && matches.test(name), results);
+                return;
+            }
+            postTrigrams();
+            List<Postings> lists = new ArrayList<>();
+            for (int i = 0; i + 3 <= literal.length(); i++) {
+                Postings postings = trigrams.get(trigram(literal, i));
+                if (postings == null) {
+                    return;
+                }
+                lists.add(postings);
+            }
+            lists.sort(Comparator.comparingInt(postings -> postings.size));
+            Postings smallest = lists.get(0);
+            candidates:
+            for (int i = 0; i < smallest.size; i++) {
+                if (i % CANCEL_CHECK == 0 && results.isDone()) {
+                    return;
+                }
+                int slot = smallest.slots[i];
+                for (int j = 1; j < lists.size(); j++) {
+                    if (!lists.get(j).contains(slot)) {
+                        continue candidates;
+                    }
+                }
+                // trigram lists keep the slots of dead and renamed entries, the name check drops them
+                if (names[slot] != null && matches.test(names[slot]) && !results.offer(entries[slot])) {
+                    return;
+                }
+            }
+        }
+
+        private void scanSlots(int from, Predicate<String> matches, Results results) {
+            for (int slot = from; slot < count; slot++) {
+                if (slot % CANCEL_CHECK == 0 && results.isDone()) {
+                    return;
+                }
+                if (names[slot] != null && matches.test(names[slot]) && !results.offer(entries[slot])) {
+                    return;
+                }
+            }
+        }
+
+        private void postTrigrams() {
+            for (; postedCount < count; postedCount++) {
+                String name = names[postedCount];
+                if (name == null) {
+                    continue;
+                }
+                for (int i = 0; i + 3 <= name.length(); i++) {
+                    trigrams.computeIfAbsent(trigram(name, i), k -> new Postings()).add(postedCount);
+                }
+            }
+        }
+
+        private void sortNames() {
+            Integer[] order = new Integer[count - dead];
+            int live = 0;
+            for (int slot = 0; slot < count; slot++) {
+                if (names[slot] != null) {
+                    order[live++] = slot;
+                }
+            }
+            Arrays.sort(order, Comparator.comparing(slot -> names[slot]));
+            sorted = new int[live];
+            sortedNames = new String[live];
+            for (int i = 0; i < live; i++) {
+                sorted[i] = order[i];
+                sortedNames[i] = names[order[i]];
+            }
+            sortedCount = count;
+        }
+
+        private void compact() {
+            List<FileObj> live = new ArrayList<>(count - dead);
+            for (int slot = 0; slot < count; slot++) {
+                if (entries[slot] != null) {
+                    entries[slot].indexSlot = -1;
+                    live.add(entries[slot]);
+                }
+            }
+            entries = new FileObj[Math.max(1024, live.size() * 2)];
+            names = new String[entries.length];
+            count = 0;
+            dead = 0;
+            trigrams.clear();
+            postedCount = 0;
+            sorted = new int[0];
+            sortedNames = new String[0];
+            sortedCount = 0;
+            addAll(live);
+        }
+
+        private static long trigram(String name, int at) {
+            return ((long) name.charAt(at) << 32) | ((long) name.charAt(at + 1) << 16) | name.charAt(at + 2);
+        }
+
+        private static java.util.regex.Pattern globPattern(String glob) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(java.util.regex.Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(java.util.regex.Pattern.quote(literal.toString()));
+            }
+            return java.util.regex.Pattern.compile(regex.toString(), java.util.regex.Pattern.DOTALL);
+        }
+
+        // ascending slots, a slot is only ever appended after every smaller one
+        private static final class Postings {
+
+            int[] slots = new int[4];
+            int size;
+
+            void add(int slot) {
+                if (size > 0 && slots[size - 1] == slot) {
+                    return;
+                }
+                if (size == slots.length) {
+                    slots = Arrays.copyOf(slots, size * 2);
+                }
+                slots[size++] = slot;
+            }
+
+            boolean contains(int slot) {
+                return Arrays.binarySearch(slots, 0, size, slot) >= 0;
+            }
+        }
+
+        private static final class Results {
+
+            private final int limit;
+            private final BooleanSupplier cancelled;
+            private List<FileObj> batch = new ArrayList<>();
+            final List<List<FileObj>> batches = new ArrayList<>();
+            int found;
+
+            Results(int limit, BooleanSupplier cancelled) {
+                this.limit = limit;
+                this.cancelled = cancelled;
+            }
+
+            // returns false once the query should stop
+            boolean offer(FileObj fileObj) {
+                batch.add(fileObj);
+                found++;
+                if (batch.size() >= BATCH) {
+                    flush();
+                }
+                return !isDone();
+            }
+
+            boolean isDone() {
+                return found >= limit || cancelled.getAsBoolean();
+            }
+
+            void flush() {
+                if (!batch.isEmpty()) {
+                    batches.add(batch);
+                }
+                batch = new ArrayList<>();
+            }
+        }
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public static abstract class FileObj {
+
+        // the full path is derived from the parent chain, only the root holds a whole path
+        private FolderFileObj parent;
+        private String name;
+        private int fileId;
+        // attributes read once by the scanner, -1 when they were never read
+        private long size = -1;
+        private long lastModified = -1;
+        // slot in the NameIndex, -1 while the entry is not indexed
+        private int indexSlot = -1;
+
+        private FileObj(FolderFileObj parent, String name, BasicFileAttributes attributes) {
+            this(parent, name);
+            setAttributes(attributes);
+        }
+
+        private FileObj(FolderFileObj parent, String name) {
+            this.parent = parent;
+            this.name = name;
+            this.fileId = NodeRegistry.nextId();
+        }
+
+        public String getFileName() {
+            if (parent == null) {
+                return name;
+            }
+            String parentName = parent.getFileName();
+            return parentName.endsWith("/") ? parentName + name : parentName + "/" + name;
+        }
+
+        public void setShortName(String shortName) {
+            if (parent == null) {
+                this.name = name.substring(0, name.lastIndexOf('/') + 1) + shortName;
+            } else {
+                this.name = shortName;
+            }
+        }
+
+        public String getShortName() {
+            return parent == null ? name.substring(name.lastIndexOf('/') + 1) : name;
+        }
+
+        FolderFileObj getParent() {
+            return parent;
+        }
+
+        /**
+         * Hangs this entry under another folder, which moves every entry below it too.
+         */
+        void moveTo(FolderFileObj newParent, String newName) {
+            this.parent = newParent;
+            setShortName(newName);
+        }
+
+        int getFileId() {
+            return fileId;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        void setSize(long size) {
+            this.size = size;
+        }
+
+        void setLastModified(long lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        void setAttributes(BasicFileAttributes attributes) {
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public abstract long computeSize();
+
+    }
+
+    public static class FolderFileObj extends FileObj {
+
+        FolderFileObj(String rootFolderName) {
+            super(null, rootFolderName);
+        }
+
+        FolderFileObj(FolderFileObj parent, String name) {
+            super(parent, name);
+        }
+
+        FolderFileObj(FolderFileObj parent, String name, BasicFileAttributes attributes) {
+            super(parent, name, attributes);
+        }
+
+        /**
+         * Total size of all files below this folder. The first call scans whatever
+         * part of the subtree is not loaded yet, later calls read the cached total.
+         */
+        @Override
+        public long computeSize() {
+            FileNode node = fileNodes.get(getFileId());
+            if (node == null) {
+                return 0;
+            }
+            if (!node.totalsComplete) {
+                SizeEvent event = jfrEvents ? SizeEvent.start() : null;
+                scanner.scan(node, -1);
+                if (event != null) {
+                    event.finish(getFileName(), node.subtreeSize, node.fileCount);
+                }
+            }
+            return node.subtreeSize;
+        }
+
+        int copyFolderTo(File destDir) {
+            return copyFolderTo(destDir, new CommandProgress());
+        }
+
+        /**
+         * Returns the number of entries that could not be copied.
+         */
+        int copyFolderTo(File destDir, CommandProgress progress) {
+            return copyEngine.copyTree(Paths.get(this.getFileName()), destDir.toPath(), progress);
+        }
+    }
+
+    public static class SingleFileObj extends FileObj {
+
+        SingleFileObj(FolderFileObj parent, String name) {
+            super(parent, name);
+        }
+
+        SingleFileObj(FolderFileObj parent, String name, BasicFileAttributes attributes) {
+            super(parent, name, attributes);
+        }
+
+        @Override
+        public long computeSize() {
+            if (getSize() < 0) {
+                setSize(new File(this.getFileName()).length());
+            }
+            return getSize();
+        }
+
+        void copyFileTo(File destFile) throws IOException {
+            copyFileTo(destFile, new CommandProgress());
+        }
+
+        void copyFileTo(File destFile, CommandProgress progress) throws IOException {
+            CopyEngine.copyFile(new File(this.getFileName()), destFile, progress);
+        }
+    }
+
+    /**
+     * All FileNodes, reachable by id and by normalized path. Ids are handed out
+     * densely, so the id index is a chunked array rather than a boxed-key map.
+     * Lookups are lock free and safe while scanner threads register nodes.
+     */
+    public static class NodeRegistry {
+
+        private static final int CHUNK_BITS = 12;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+        private static final AtomicInteger ids = new AtomicInteger();
+
+        private volatile AtomicReferenceArray<AtomicReferenceArray<FileNode>> chunks =
+                new AtomicReferenceArray<>(64);
+        private final ConcurrentHashMap<String, FileNode> byPath = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        static int nextId() {
+            return ids.incrementAndGet();
+        }
+
+        FileNode get(int id) {
+            AtomicReferenceArray<FileNode> chunk = chunk(id, false);
+            return chunk == null ? null : chunk.get(id & (CHUNK_SIZE - 1));
+        }
+
+        FileNode getByPath(String path) {
+            return byPath.get(normalize(path));
+        }
+
+        void register(FileNode node) {
+            if (chunk(node.self.fileId, true).getAndSet(node.self.fileId & (CHUNK_SIZE - 1), node) == null) {
+                size.incrementAndGet();
+            }
+            byPath.put(normalize(node.self.getFileName()), node);
+        }
+
+        FileNode remove(int id) {
+            AtomicReferenceArray<FileNode> chunk = chunk(id, false);
+            FileNode node = chunk == null ? null : chunk.getAndSet(id & (CHUNK_SIZE - 1), null);
+            if (node != null) {
+                size.decrementAndGet();
+                byPath.remove(normalize(node.self.getFileName()), node);
+            }
+            return node;
+        }
+
+        /**
+         * Moves a node to its new path key after its FileObj was renamed.
+         */
+        void rekey(FileNode node, String oldPath) {
+            byPath.remove(normalize(oldPath), node);
+            byPath.put(normalize(node.self.getFileName()), node);
+        }
+
+        int size() {
+            return size.get();
+        }
+
+        private AtomicReferenceArray<FileNode> chunk(int id, boolean create) {
+            int index = id >>> CHUNK_BITS;
+            AtomicReferenceArray<AtomicReferenceArray<FileNode>> current = chunks;
+            if (index < current.length() && current.get(index) != null) {
+                return current.get(index);
+            }
+            if (!create) {
+                return null;
+            }
+            synchronized (this) {
+                current = chunks;
+                if (index >= current.length()) {
+                    AtomicReferenceArray<AtomicReferenceArray<FileNode>> grown =
+                            new AtomicReferenceArray<>(Math.max(index + 1, current.length() * 2));
+                    for (int i = 0; i < current.length(); i++) {
+                        grown.set(i, current.get(i));
+                    }
+                    chunks = grown;
+                    current = grown;
+                }
+                if (current.get(index) == null) {
+                    current.set(index, new AtomicReferenceArray<>(CHUNK_SIZE));
+                }
+                return current.get(index);
+            }
+        }
+
+        private static String normalize(String path) {
+            return Paths.get(path).normalize().toString();
+        }
+    }
+
+    public static class FileNode {
+
+        FileNode(FileObj self) {
+            this.self = self;
+        }
+
+        FileObj self;
+        FileNode parent;
+        // never changed in place: a change publishes a new list, so any thread can read the one it holds
+        volatile List<FileObj> children = Collections.emptyList();
+        private final Object childrenLock = new Object();
+        // true once the directory has been listed into children
+        volatile boolean loaded = false;
+        // the view showing the children, once it has built them
+        ChildrenView view;
+        // read by the watcher thread to tell a live key from a cancelled one
+        volatile WatchKey watchKey;
+
+        // size and number of all files below this directory, valid while totalsComplete is set
+        long subtreeSize = 0;
+        long fileCount = 0;
+        volatile boolean totalsComplete = false;
+
+        /**
+         * Publishes a fresh listing; the caller hands the list over and does not touch it again.
+         */
+        void setChildren(List<FileObj> listed) {
+            synchronized (childrenLock) {
+                children = Collections.unmodifiableList(listed);
+            }
+        }
+
+        void addChildren(Collection<FileObj> added) {
+            synchronized (childrenLock) {
+                List<FileObj> next = new ArrayList<>(children.size() + added.size());
+                next.addAll(children);
+                next.addAll(added);
+                children = Collections.unmodifiableList(next);
+            }
+        }
+
+        void removeChildren(Collection<FileObj> removed) {
+            Set<FileObj> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+            gone.addAll(removed);
+            synchronized (childrenLock) {
+                List<FileObj> next = new ArrayList<>(children.size());
+                for (FileObj child : children) {
+                    if (!gone.contains(child)) {
+                        next.add(child);
+                    }
+                }
+                children = Collections.unmodifiableList(next);
+            }
+        }
+
+        /**
+         * Recomputes the totals from the direct children. This only succeeds once
+         * the directory is listed and every sub directory has complete totals.
+         */
+        synchronized boolean updateTotals() {
+            if (!loaded) {
+                return totalsComplete;
+            }
+            long size = 0;
+            long count = 0;
+            for (FileObj child : children) {
+                if (child instanceof FolderFileObj) {
+                    FileNode childNode = fileNodes.get(child.fileId);
+                    if (childNode == null || !childNode.totalsComplete) {
+                        return totalsComplete;
+                    }
+                    size += childNode.subtreeSize;
+                    count += childNode.fileCount;
+                } else {
+                    size += child.computeSize();
+                    count++;
+                }
+            }
+            subtreeSize = size;
+            fileCount = count;
+            totalsComplete = true;
+            return true;
+        }
+
+        /**
+         * Applies a change in the subtree to this directory and all directories above it.
+         */
+        void addToTotals(long sizeDelta, long countDelta) {
+            for (FileNode node = this; node != null; node = node.parent) {
+                synchronized (node) {
+                    node.subtreeSize += sizeDelta;
+                    node.fileCount += countDelta;
+                }
+            }
+        }
+
+        void invalidateTotals() {
+            for (FileNode node = this; node != null; node = node.parent) {
+                node.totalsComplete = false;
+            }
+        }
+
+        synchronized void copyTotalsFrom(FileNode other) {
+            subtreeSize = other.subtreeSize;
+            fileCount = other.fileCount;
+            totalsComplete = true;
+        }
+
+        /**
+         * Marks a directory that was just created by the application as listed and empty.
+         */
+        void markEmpty() {
+            loaded = true;
+            totalsComplete = true;
+        }
+
+    }
+
+    /**
+     * Staging area for deleted entries. An entry is renamed into a per session
+     * folder on its own file system, so both the delete and its undo are a
+     * rename; entries are only removed for real once the history drops them.
+     * Entries on the home file system go below ~/.worobella/trash, others to a
+     * .worobella-trash folder at the top of their file system.
+     */
+    public static class TrashArea {
+
+        private final String session = Long.toString(System.currentTimeMillis(), 36);
+        private final Map<FileStore, Path> folders = new ConcurrentHashMap<>();
+        private final AtomicLong sequence = new AtomicLong();
+        private final ExecutorService purger = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "trash-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /**
+         * Renames the entry into the trash and returns where it went. Fails when
+         * no trash folder can be made on the entry's file system.
+         */
+        Path stage(Path entry) throws IOException {
+            Path staged = folderFor(entry).resolve(sequence.incrementAndGet() + "-" + entry.getFileName());
+            Files.move(entry, staged, StandardCopyOption.ATOMIC_MOVE);
+            return staged;
+        }
+
+        /**
+         * Whether the entry's file system has room for a trash folder. Does not
+         * promise that the rename into it will work.
+         */
+        boolean canStage(Path entry) {
+            try {
+                folderFor(entry);
+                return true;
+            } catch (IOException e) {
+                opLog.error("trash.unavailable", "path=" + entry + " error=" + e);
+                return false;
+            }
+        }
+
+        void restore(Path staged, Path original) throws IOException {
+            // a rename would silently replace a file that took the old place
+            if (Files.exists(original, LinkOption.NOFOLLOW_LINKS)) {
+                throw new FileAlreadyExistsException(original.toString());
+            }
+            Files.move(staged, original, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Removes a staged entry for good, in the background.
+         */
+        void purge(Path staged) {
+            purger.execute(() -> {
+                if (deleteEngine.deleteTree(staged, new CommandProgress()) > 0) {
+                    opLog.error("trash.purge.failed", "path=" + staged);
+                }
+            });
+        }
+
+        /**
+         * Measures a staged entry in the background and hands its size to the callback.
+         */
+        void measure(Path staged, java.util.function.LongConsumer callback) {
+            purger.execute(() -> {
+                long[] total = {0};
+                try {
+                    Files.walkFileTree(staged, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            total[0] += attrs.size();
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                } catch (IOException e) {
+                    opLog.error("trash.measure.failed", "path=" + staged + " error=" + e);
+                }
+                callback.accept(total[0]);
+            });
+        }
+
+        /**
+         * Removes every session folder, waiting for purges already queued.
+         */
+        void purgeAll() {
+            purger.shutdown();
+            try {
+                purger.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Path folder : folders.values()) {
+                if (deleteEngine.deleteTree(folder, new CommandProgress()) > 0) {
+                    opLog.error("trash.purge.failed", "path=" + folder);
+                }
+            }
+            folders.clear();
+        }
+
+        private Path folderFor(Path entry) throws IOException {
+            // the store of the directory holding the name, a link may point elsewhere
+            Path parent = entry.toAbsolutePath().getParent();
+            FileStore store = Files.getFileStore(parent);
+            Path folder = folders.get(store);
+            if (folder != null) {
+                return folder;
+            }
+            Path homeTrash = Paths.get(System.getProperty("user.home"), ".worobella", "trash");
+            Files.createDirectories(homeTrash);
+            if (Files.getFileStore(homeTrash).equals(store)) {
+                folder = homeTrash.resolve(session);
+            } else {
+                Path top = parent;
+                while (top.getParent() != null && Files.getFileStore(top.getParent()).equals(store)) {
+                    top = top.getParent();
+                }
+                folder = top.resolve(".worobella-trash-" + System.getProperty("user.name")).resolve(session);
+            }
+            Files.createDirectories(folder);
+            folders.put(store, folder);
+            return folder;
+        }
+    }
+
+    /**
+     * Bytes and files handled by a running command, and whether it should stop.
+     */
+    public static class CommandProgress {
+
+        private final AtomicLong bytesDone = new AtomicLong();
+        private final AtomicLong filesDone = new AtomicLong();
+        private volatile long totalBytes = -1;
+        private volatile long totalFiles = -1;
+        private volatile boolean cancelled = false;
+
+        void setTotal(long totalBytes, long totalFiles) {
+            this.totalBytes = totalBytes;
+            this.totalFiles = totalFiles;
+            changed();
+        }
+
+        void addBytes(long bytes) {
+            bytesDone.addAndGet(bytes);
+            changed();
+        }
+
+        void addFiles(long files) {
+            filesDone.addAndGet(files);
+            changed();
+        }
+
+        long getBytesDone() {
+            return bytesDone.get();
+        }
+
+        long getFilesDone() {
+            return filesDone.get();
+        }
+
+        long getTotalBytes() {
+            return totalBytes;
+        }
+
+        long getTotalFiles() {
+            return totalFiles;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        void changed() {
+        }
+    }
+}
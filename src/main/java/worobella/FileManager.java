@@ -0,0 +1,2679 @@
+package worobella;
+
+import static worobella.Core.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import javafx.collections.ObservableList;
+import javafx.scene.Scene;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.*;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
+import javafx.scene.input.MouseButton;
+import javafx.scene.paint.Color;
+import javafx.stage.Stage;
+
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+public class FileManager extends Application {
+
+    FileNode rootFileNode;
+    private static TreeView<FileObj> treeView;
+
+    private static final CopyPasteContext copyPasteContext = CopyPasteContext.getCopyPasteContext();
+    private static final CommandHistory history = new CommandHistory();
+    private static final FxUpdateQueue fxUpdates = new FxUpdateQueue();
+    private static final CommandExecutor commandExecutor = new CommandExecutor(4);
+    private static CommandStatusBar statusBar;
+    private static CellContextMenu cellMenu;
+    // how many of the largest files and folders a disk usage window lists
+    private static int diskUsageTop = 100;
+
+    public static void main(String[] args) {
+        Application.launch(args);
+    }
+
+
+    /**
+     * Expands the tree down to the given entry and selects it.
+     */
+    private static void revealInTree(FileObj target) {
+        revealPath(target.getFileName());
+    }
+
+    /**
+     * Expands the tree down to the entry at the given path and selects it. The
+     * entry is looked up through the registry's path index, so a caller holding
+     * an outdated FileObj still lands on the one the tree shows.
+     */
+    private static void revealPath(String path) {
+        Path targetPath = Paths.get(path).normalize();
+        FileObj target = null;
+        FileNode node = fileNodes.getByPath(targetPath.toString());
+        if (node != null) {
+            target = node.self;
+        } else if (targetPath.getParent() != null) {
+            FileNode parentNode = fileNodes.getByPath(targetPath.getParent().toString());
+            String name = targetPath.getFileName().toString();
+            if (parentNode != null) {
+                for (FileObj child : parentNode.children) {
+                    if (child.getShortName().equals(name)) {
+                        target = child;
+                        break;
+                    }
+                }
+            }
+        }
+        if (target == null) {
+            opLog.log("reveal.missing", "path=" + path);
+            return;
+        }
+        Deque<FileObj> chain = new ArrayDeque<>();
+        for (FileObj fileObj = target; fileObj != null; fileObj = fileObj.getParent()) {
+            chain.push(fileObj);
+        }
+        TreeItem<FileObj> item = treeView.getRoot();
+        if (item == null || chain.pop() != item.getValue()) {
+            return;
+        }
+        while (!chain.isEmpty()) {
+            FileObj next = chain.pop();
+            item.setExpanded(true);
+            TreeItem<FileObj> match = null;
+            for (TreeItem<FileObj> child : item.getChildren()) {
+                if (child.getValue() == next) {
+                    match = child;
+                    break;
+                }
+            }
+            if (match == null) {
+                return;
+            }
+            item = match;
+        }
+        treeView.getSelectionModel().select(item);
+        treeView.scrollTo(treeView.getRow(item));
+    }
+
+    private static void executeCommand(Command command) {
+        if (command instanceof BackgroundCommand) {
+            BackgroundCommand backgroundCommand = (BackgroundCommand) command;
+            if (backgroundCommand.prepare()) {
+                statusBar.track(commandExecutor.submit(backgroundCommand));
+            }
+            return;
+        }
+        long started = System.nanoTime();
+        boolean done = command.execute();
+        // runs on the FX thread, so this is also how long the window was blocked
+        metrics.recordCommand(command.getClass().getSimpleName(), System.nanoTime() - started);
+        if (done) {
+            history.push(command);
+        }
+    }
+
+    private static void undo() {
+        if (!history.undo()) {
+            opLog.log("history.empty", "action=undo");
+        }
+    }
+
+    private static void redo() {
+        if (!history.redo()) {
+            opLog.log("history.empty", "action=redo");
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (indexFile != null && rootFileNode != null) {
+            IndexSnapshot.save(rootFileNode, indexFile);
+        }
+        // nothing can be undone once the window is gone
+        trash.purgeAll();
+    }
+
+    @Override
+    public void start(Stage stage) {
+
+        TextInputDialog dialog = new TextInputDialog("/home/villager/Music");
+        dialog.setTitle("Folder Input");
+        dialog.setHeaderText("Enter the full path to target folder");
+
+        Optional<String> result = dialog.showAndWait();
+
+        if (!result.isPresent()) {
+            return;
+        }
+
+        String folderName = result.get();
+        File homeFolder = new File(folderName);
+        if (!homeFolder.exists()) {
+            return;
+        }
+
+        // background scans and the watcher change the model on the FX thread
+        modelUpdates = fxUpdates::post;
+
+        String depthParameter = getParameters().getNamed().get("prefetch-depth");
+        if (depthParameter != null) {
+            prefetchDepth = Integer.parseInt(depthParameter);
+        }
+        String threadsParameter = getParameters().getNamed().get("scan-threads");
+        if (threadsParameter != null) {
+            scanner = new DirectoryScanner(Integer.parseInt(threadsParameter));
+        }
+        String copiesParameter = getParameters().getNamed().get("copy-threads");
+        if (copiesParameter != null) {
+            copyEngine = new CopyEngine(Integer.parseInt(copiesParameter));
+        }
+        CopyEngine.useFilesCopy = "files".equals(getParameters().getNamed().get("copy-mode"));
+        CopyEngine.verifyCopies = "true".equals(getParameters().getNamed().get("verify-copies"));
+        String deletesParameter = getParameters().getNamed().get("delete-threads");
+        if (deletesParameter != null) {
+            deleteEngine = new DeleteEngine(Integer.parseInt(deletesParameter));
+        }
+        String hashesParameter = getParameters().getNamed().get("hash-threads");
+        if (hashesParameter != null) {
+            duplicateFinder = new DuplicateFinder(Integer.parseInt(hashesParameter));
+        }
+        String topParameter = getParameters().getNamed().get("usage-top");
+        if (topParameter != null) {
+            diskUsageTop = Integer.parseInt(topParameter);
+        }
+        String historyParameter = getParameters().getNamed().get("history-size");
+        if (historyParameter != null) {
+            history.setMaxCommands(Integer.parseInt(historyParameter));
+        }
+        String budgetParameter = getParameters().getNamed().get("trash-budget-mb");
+        if (budgetParameter != null) {
+            history.setByteBudget(Long.parseLong(budgetParameter) * 1024 * 1024);
+        }
+
+        metrics.registerMBean();
+        jfrEvents = !"false".equals(getParameters().getNamed().get("jfr-events"));
+        int metricsInterval = Integer.parseInt(getParameters().getNamed().getOrDefault("metrics-interval", "60"));
+        if (metricsInterval > 0) {
+            metrics.startDumps(metricsInterval);
+        }
+
+        if (!"false".equals(getParameters().getNamed().get("watch"))) {
+            try {
+                watcher = new DirectoryWatcher(250);
+            } catch (IOException e) {
+                opLog.error("watch.unavailable", "error=" + e);
+            }
+        }
+
+        if (!"false".equals(getParameters().getNamed().get("index"))) {
+            indexFile = IndexSnapshot.defaultLocation(folderName);
+        }
+
+        rootFileNode = populateFileNodes(folderName);
+
+        TreeItem<FileObj> rootNode = new LazyFileTreeItem(rootFileNode.self);
+        rootNode.setExpanded(true);
+        // collapse events bubble up to the root, one handler releases any branch
+        rootNode.addEventHandler(TreeItem.<FileObj>branchCollapsedEvent(), e -> {
+            LazyFileTreeItem collapsed = (LazyFileTreeItem) e.getTreeItem();
+            fxUpdates.post(() -> {
+                if (!collapsed.isExpanded()) {
+                    collapsed.release();
+                }
+            });
+        });
+
+        stage.setTitle("Worobella File System");
+        VBox box = new VBox();
+        final Scene scene = new Scene(box, 400, 300);
+        scene.setFill(Color.LIGHTGRAY);
+        scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN), FileManager::undo);
+        scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Y, KeyCombination.SHORTCUT_DOWN), FileManager::redo);
+
+        treeView = new TreeView<>(rootNode);
+        treeView.setEditable(true);
+        treeView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        cellMenu = new CellContextMenu();
+        treeView.setCellFactory(p -> new TextFieldTreeCellImpl());
+
+        statusBar = new CommandStatusBar();
+        SearchPane searchPane = new SearchPane(nameIndex, FileManager::revealInTree);
+        VBox.setVgrow(treeView, Priority.ALWAYS);
+        box.getChildren().addAll(searchPane, treeView, statusBar);
+        stage.setScene(scene);
+        stage.show();
+    }
+
+    /**
+     * Tree item that builds its children from the FileNode model only when
+     * the TreeView first asks for them, listing the directory if needed.
+     * Large directories are filled in chunks, one FX event per chunk, and a
+     * collapsed item gives its children back (see release).
+     */
+    public static class LazyFileTreeItem extends TreeItem<FileObj> implements ChildrenView {
+
+        private static final int CHUNK = 10_000;
+
+        private boolean childrenLoaded = false;
+        // bumped on release so chunks still queued for the old children are dropped
+        private int generation;
+
+        LazyFileTreeItem(FileObj fileObj) {
+            super(fileObj);
+        }
+
+        @Override
+        public ObservableList<TreeItem<FileObj>> getChildren() {
+            if (!childrenLoaded) {
+                childrenLoaded = true;
+                FileNode node = fileNodes.get(getValue().getFileId());
+                if (node != null) {
+                    List<FileObj> children = loadChildren(node).children;
+                    if (children.size() <= CHUNK) {
+                        node.view = this;
+                        super.getChildren().setAll(createItems(children, 0, children.size()));
+                    } else {
+                        super.getChildren().setAll(createItems(children, 0, CHUNK));
+                        int current = generation;
+                        Platform.runLater(() -> fill(node, children, CHUNK, current));
+                    }
+                }
+            }
+            return super.getChildren();
+        }
+
+        /**
+         * Adds the next chunk of a large directory. The watcher and commands do
+         * not see this item until the last chunk is in, which then brings the
+         * items in line with whatever the directory holds by that time.
+         */
+        private void fill(FileNode node, List<FileObj> snapshot, int from, int expectedGeneration) {
+            if (generation != expectedGeneration) {
+                return;
+            }
+            int to = Math.min(from + CHUNK, snapshot.size());
+            super.getChildren().addAll(createItems(snapshot, from, to));
+            if (to < snapshot.size()) {
+                Platform.runLater(() -> fill(node, snapshot, to, expectedGeneration));
+                return;
+            }
+            node.view = this;
+            Set<FileObj> current = Collections.newSetFromMap(new IdentityHashMap<>());
+            current.addAll(node.children);
+            super.getChildren().removeIf(item -> !current.contains(item.getValue()));
+            Set<FileObj> shown = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (TreeItem<FileObj> item : super.getChildren()) {
+                shown.add(item.getValue());
+            }
+            List<TreeItem<FileObj>> missing = new ArrayList<>();
+            for (FileObj child : node.children) {
+                if (!shown.contains(child)) {
+                    missing.add(new LazyFileTreeItem(child));
+                }
+            }
+            super.getChildren().addAll(missing);
+        }
+
+        @Override
+        public void childrenAdded(List<FileObj> added) {
+            super.getChildren().addAll(createItems(added, 0, added.size()));
+        }
+
+        @Override
+        public void childrenRemoved(Set<FileObj> removed) {
+            super.getChildren().removeIf(item -> removed.contains(item.getValue()));
+        }
+
+        private static List<TreeItem<FileObj>> createItems(List<FileObj> children, int from, int to) {
+            List<TreeItem<FileObj>> items = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                items.add(new LazyFileTreeItem(children.get(i)));
+            }
+            return items;
+        }
+
+        /**
+         * Drops the child items of a collapsed branch, and everything built below
+         * them, so only expanded branches hold tree items. Expanding again
+         * rebuilds them from the FileNode model.
+         */
+        void release() {
+            if (!childrenLoaded) {
+                return;
+            }
+            childrenLoaded = false;
+            generation++;
+            FileNode node = fileNodes.get(getValue().getFileId());
+            if (node != null && node.view == this) {
+                node.view = null;
+            }
+            for (TreeItem<FileObj> child : super.getChildren()) {
+                ((LazyFileTreeItem) child).release();
+            }
+            super.getChildren().clear();
+        }
+
+        @Override
+        public boolean isLeaf() {
+            if (!(getValue() instanceof FolderFileObj)) {
+                return true;
+            }
+            FileNode node = fileNodes.get(getValue().getFileId());
+            return node == null || (node.loaded && node.children.isEmpty());
+        }
+    }
+
+    /**
+     * The one context menu all tree cells share. A cell shows it with itself as
+     * the owner node, so the items pick their target cell when they are chosen
+     * and are enabled for the target's type when the menu opens.
+     */
+    public static class CellContextMenu extends ContextMenu {
+
+        private final MenuItem addFileMenuItem = new MenuItem("Add File");
+        private final MenuItem addDirMenuItem = new MenuItem("Add Directory");
+        private final MenuItem copyMenuItem = new MenuItem("Copy file");
+        private final MenuItem cutFileMenuItem = new MenuItem("Cut file");
+        private final MenuItem pasteFileMenu = new MenuItem("Paste file");
+        private final MenuItem syncPasteMenuItem = new MenuItem("Sync paste");
+        private final MenuItem removeMenuItem = new MenuItem("Delete file");
+        private final MenuItem sizeMenuItem = new MenuItem("Compute Size");
+        private final MenuItem duplicatesMenuItem = new MenuItem("Find Duplicates");
+        private final MenuItem diskUsageMenuItem = new MenuItem("Disk Usage");
+        private final MenuItem undoMenuItem = new MenuItem("Undo");
+        private final MenuItem redoMenuItem = new MenuItem("Redo");
+
+        CellContextMenu() {
+            addItem(addFileMenuItem, AddFileCommand::new);
+            addItem(addDirMenuItem, AddDirectoryCommand::new);
+            addItem(copyMenuItem, CopyCommand::new);
+            addItem(cutFileMenuItem, CutCommand::new);
+            addItem(pasteFileMenu, CellContextMenu::pasteCommand);
+            addItem(syncPasteMenuItem, SyncPasteCommand::new);
+            addItem(removeMenuItem, CellContextMenu::deleteCommand);
+            addItem(sizeMenuItem, ComputeSizeCommand::new);
+            addItem(duplicatesMenuItem, FindDuplicatesCommand::new);
+            addItem(diskUsageMenuItem, DiskUsageCommand::new);
+            undoMenuItem.setOnAction(t -> undo());
+            redoMenuItem.setOnAction(t -> redo());
+            getItems().addAll(new SeparatorMenuItem(), undoMenuItem, redoMenuItem);
+            setOnShowing(e -> updateItems());
+        }
+
+        private void addItem(MenuItem menuItem, Function<TextFieldTreeCellImpl, Command> command) {
+            menuItem.setOnAction(t -> {
+                TextFieldTreeCellImpl cell = targetCell();
+                if (cell != null && cell.getItem() != null) {
+                    executeCommand(command.apply(cell));
+                }
+            });
+            getItems().add(menuItem);
+        }
+
+        private static Command deleteCommand(TextFieldTreeCellImpl cell) {
+            List<TreeItem<FileObj>> targets = actionTargets(cell);
+            if (targets.size() == 1) {
+                return new DeleteFileCommand(cell);
+            }
+            List<BackgroundCommand> parts = new ArrayList<>(targets.size());
+            for (TreeItem<FileObj> item : targets) {
+                parts.add(new DeleteFileCommand(cell, item.getValue()));
+            }
+            return new BatchCommand(cell, parts);
+        }
+
+        private static Command pasteCommand(TextFieldTreeCellImpl cell) {
+            List<TreeItem<FileObj>> origins = copyPasteContext.getOrigins();
+            if (origins.size() < 2) {
+                return new PasteCommand(cell);
+            }
+            List<BackgroundCommand> parts = new ArrayList<>(origins.size());
+            Set<String> names = new HashSet<>();
+            for (TreeItem<FileObj> origin : origins) {
+                if (!names.add(origin.getValue().getShortName())) {
+                    // two entries of the same name would land on the same target
+                    opLog.error("paste.skipped", "src=" + origin.getValue().getFileName() + " duplicate=true");
+                    continue;
+                }
+                CopyPasteContext part = copyPasteContext.getClone();
+                part.setOriginFileObj(origin.getValue());
+                part.setOriginTreeItem(part.getActionType() == CopyPasteContext.Actions.CUT ? origin : null);
+                parts.add(new PasteCommand(cell, part));
+            }
+            return new BatchCommand(cell, parts);
+        }
+
+        private TextFieldTreeCellImpl targetCell() {
+            return getOwnerNode() instanceof TextFieldTreeCellImpl ? (TextFieldTreeCellImpl) getOwnerNode() : null;
+        }
+
+        private void updateItems() {
+            TextFieldTreeCellImpl cell = targetCell();
+            FileObj item = cell == null ? null : cell.getItem();
+            boolean folder = item instanceof FolderFileObj;
+            boolean movable = item != null && item.getParent() != null;
+            addFileMenuItem.setDisable(!folder);
+            addDirMenuItem.setDisable(!folder);
+            copyMenuItem.setDisable(!movable);
+            cutFileMenuItem.setDisable(!movable);
+            pasteFileMenu.setDisable(item == null || !copyPasteContext.isPastePending());
+            // a sync leaves its source alone, so it only follows a copy
+            syncPasteMenuItem.setDisable(item == null || !copyPasteContext.isPastePending()
+                    || copyPasteContext.getActionType() != CopyPasteContext.Actions.COPY);
+            removeMenuItem.setDisable(!movable);
+            sizeMenuItem.setDisable(item == null);
+            duplicatesMenuItem.setDisable(!folder);
+            diskUsageMenuItem.setDisable(!folder);
+            undoMenuItem.setDisable(!history.canUndo());
+            redoMenuItem.setDisable(!history.canRedo());
+        }
+    }
+
+    private final class TextFieldTreeCellImpl extends TreeCell<FileObj> {
+
+        private TextField textField;
+
+        @Override
+        public void startEdit() {
+            super.startEdit();
+            if (textField == null) {
+                createTextField();
+            }
+            setText(null);
+            setGraphic(textField);
+            textField.selectAll();
+        }
+
+        @Override
+        public void cancelEdit() {
+            super.cancelEdit();
+            setText(getItem().getShortName());
+            setGraphic(getTreeItem().getGraphic());
+        }
+
+        TextField getTextField() {
+            return this.textField;
+        }
+
+        @Override
+        public void updateItem(FileObj item, boolean empty) {
+            super.updateItem(item, empty);
+
+            if (empty) {
+                setText(null);
+                setGraphic(null);
+            } else {
+                if (isEditing()) {
+                    if (textField != null) {
+                        textField.setText(getString());
+                    }
+                    setText(null);
+                    setGraphic(textField);
+                } else {
+                    setText(getString());
+                    setGraphic(getTreeItem().getGraphic());
+                    setContextMenu(cellMenu);
+                }
+            }
+        }
+
+        private void createTextField() {
+            textField = new TextField(getString());
+            textField.setOnKeyReleased(t -> {
+
+                if (t.getCode() == KeyCode.ENTER) {
+
+                    executeCommand(new RenameFileCommand(this));
+
+                } else if (t.getCode() == KeyCode.ESCAPE) {
+                    cancelEdit();
+                }
+            });
+
+        }
+
+        private String getString() {
+            return getItem() == null ? "" : getItem().getShortName();
+        }
+    }
+
+    public static abstract class Command {
+
+        @SuppressWarnings("WeakerAccess")
+        protected TextFieldTreeCellImpl treeCell;
+        @SuppressWarnings("WeakerAccess")
+        protected CopyPasteContext context;
+        // set when the command acts on one entry of a selection rather than on the cell's item
+        @SuppressWarnings("WeakerAccess")
+        protected FileObj target;
+
+        Command(TextFieldTreeCellImpl treeCell) {
+            this.treeCell = treeCell;
+        }
+
+        public abstract boolean execute();
+
+        public abstract boolean undo();
+
+        /**
+         * Applies the command again after an undo. The cell it came from may show
+         * another item by now, so this works from what execute captured.
+         */
+        public boolean redo() {
+            return false;
+        }
+
+        /**
+         * Whether the command changed anything on disk that undo can take back.
+         */
+        boolean isUndoable() {
+            return true;
+        }
+
+        /**
+         * Whether the command changed the disk in a way nothing can take back,
+         * so undo must not step past it to older commands.
+         */
+        boolean isIrreversible() {
+            return false;
+        }
+
+        /**
+         * Bytes this command keeps in the trash so that it can be undone or redone.
+         */
+        long getStagedBytes() {
+            return 0;
+        }
+
+        /**
+         * Called when the command leaves the history, to let go of staged data.
+         */
+        void discard() {
+        }
+
+        FileObj getItem() {
+            return target != null ? target : treeCell.getItem();
+        }
+    }
+
+    /**
+     * Undo and redo stacks, bounded by a number of commands and by the bytes
+     * their commands keep staged in the trash. The oldest commands are dropped
+     * first and let go of their staged data, which is when a delete becomes
+     * final. Commands that change nothing on disk are not recorded; one that
+     * cannot be taken back stays on top and undo stops there.
+     */
+    public static class CommandHistory {
+
+        private final ArrayDeque<Command> undoStack = new ArrayDeque<>();
+        private final ArrayDeque<Command> redoStack = new ArrayDeque<>();
+        private int maxCommands = 100;
+        private long byteBudget = 1L << 30;
+
+        void setMaxCommands(int maxCommands) {
+            this.maxCommands = maxCommands;
+        }
+
+        void setByteBudget(long byteBudget) {
+            this.byteBudget = byteBudget;
+        }
+
+        void push(Command c) {
+            if (!c.isUndoable() && !c.isIrreversible()) {
+                return;
+            }
+            undoStack.push(c);
+            for (Command undone : redoStack) {
+                undone.discard();
+            }
+            redoStack.clear();
+            trim();
+        }
+
+        boolean undo() {
+            Command c = undoStack.peek();
+            if (c == null) {
+                return false;
+            }
+            if (!c.isUndoable()) {
+                // stays on top, the commands below it worked on what it destroyed
+                opLog.error("history.irreversible", "command=" + c.getClass().getSimpleName());
+                return true;
+            }
+            undoStack.poll();
+            if (c.undo()) {
+                redoStack.push(c);
+            } else {
+                // nothing changed, the command can be tried again
+                undoStack.push(c);
+                opLog.error("history.undo.failed", "command=" + c.getClass().getSimpleName());
+            }
+            trim();
+            return true;
+        }
+
+        boolean redo() {
+            Command c = redoStack.poll();
+            if (c == null) {
+                return false;
+            }
+            if (c.redo()) {
+                undoStack.push(c);
+            } else {
+                redoStack.push(c);
+                opLog.error("history.redo.failed", "command=" + c.getClass().getSimpleName());
+            }
+            trim();
+            return true;
+        }
+
+        boolean canUndo() {
+            return !undoStack.isEmpty();
+        }
+
+        boolean canRedo() {
+            return !redoStack.isEmpty();
+        }
+
+        /**
+         * Drops the oldest commands until both limits hold again. Also called when
+         * the size of something staged becomes known.
+         */
+        void trim() {
+            long staged = 0;
+            for (Command c : undoStack) {
+                staged += c.getStagedBytes();
+            }
+            for (Command c : redoStack) {
+                staged += c.getStagedBytes();
+            }
+            while (!undoStack.isEmpty() || !redoStack.isEmpty()) {
+                if (undoStack.size() + redoStack.size() <= maxCommands && staged <= byteBudget) {
+                    break;
+                }
+                Command dropped = undoStack.isEmpty() ? redoStack.pollLast() : undoStack.pollLast();
+                staged -= dropped.getStagedBytes();
+                opLog.log("history.dropped", "command=" + dropped.getClass().getSimpleName()
+                        + " staged=" + dropped.getStagedBytes());
+                dropped.discard();
+            }
+        }
+    }
+
+    /**
+     * An entry a command moved into the trash, with what it takes to put it
+     * back. The same entry can be staged and restored any number of times.
+     */
+    public static class StagedEntry {
+
+        private final FileObj fileObj;
+        private Path original;
+        private Path staged;
+        private volatile long bytes;
+
+        StagedEntry(FileObj fileObj) {
+            this.fileObj = fileObj;
+        }
+
+        /**
+         * Moves the entry into the trash and out of the model. FX thread only.
+         */
+        boolean stage() {
+            if (!moveToTrash()) {
+                return false;
+            }
+            removeFromModel(fileObj);
+            return true;
+        }
+
+        /**
+         * Moves the entry back from the trash and into the model. FX thread only.
+         */
+        boolean restore() {
+            if (!moveBack()) {
+                return false;
+            }
+            addToModel(fileObj);
+            return true;
+        }
+
+        /**
+         * The disk half of stage, for worker threads; the caller updates the model.
+         */
+        boolean moveToTrash() {
+            long knownSize = knownSize(fileObj);
+            original = Paths.get(fileObj.getFileName());
+            try {
+                staged = trash.stage(original);
+            } catch (IOException e) {
+                opLog.error("trash.stage.failed", "path=" + original + " error=" + e);
+                return false;
+            }
+            bytes = knownSize;
+            if (knownSize < 0) {
+                Path measured = staged;
+                trash.measure(measured, size -> {
+                    bytes = size;
+                    fxUpdates.post(history::trim);
+                });
+            }
+            return true;
+        }
+
+        boolean moveBack() {
+            if (staged == null) {
+                return false;
+            }
+            try {
+                trash.restore(staged, original);
+            } catch (IOException e) {
+                opLog.error("trash.restore.failed", "path=" + original + " error=" + e);
+                return false;
+            }
+            staged = null;
+            return true;
+        }
+
+        boolean isStaged() {
+            return staged != null;
+        }
+
+        void purge() {
+            if (staged != null) {
+                trash.purge(staged);
+                staged = null;
+            }
+        }
+
+        long getBytes() {
+            return staged == null ? 0 : Math.max(bytes, 0);
+        }
+
+        // -1 when neither the scanner nor an earlier size query knows it
+        private static long knownSize(FileObj fileObj) {
+            FileNode node = fileNodes.get(fileObj.getFileId());
+            if (node == null) {
+                return fileObj.getSize();
+            }
+            return node.totalsComplete ? node.subtreeSize : -1;
+        }
+    }
+
+    /**
+     * Command whose file system work runs on a worker thread. prepare and finish
+     * run on the FX thread, run must not touch the scene graph.
+     */
+    public static abstract class BackgroundCommand extends Command {
+
+        BackgroundCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+        }
+
+        /**
+         * Captures whatever the command needs from the tree cell, which may be
+         * reused for another item while the command runs.
+         */
+        boolean prepare() {
+            return true;
+        }
+
+        abstract boolean run(CommandProgress progress) throws IOException;
+
+        abstract void finish();
+
+        /**
+         * Called on the FX thread when the command was cancelled part way through.
+         */
+        void cancelled() {
+        }
+
+        @Override
+        public boolean execute() {
+            try {
+                if (prepare() && run(new CommandProgress())) {
+                    finish();
+                    return true;
+                }
+            } catch (IOException e) {
+                opLog.error("command.failed", "command=" + getClass().getSimpleName() + " error=" + e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Runs background commands on a small worker pool. A command goes into the
+     * history only after it completed without being cancelled.
+     */
+    public static class CommandExecutor {
+
+        private final ExecutorService workers;
+
+        CommandExecutor(int threads) {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "command-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        Task<Boolean> submit(BackgroundCommand command) {
+            CommandTask task = new CommandTask(command);
+            workers.submit(task);
+            return task;
+        }
+    }
+
+    private static final class CommandTask extends Task<Boolean> {
+
+        private final BackgroundCommand command;
+        private final long submitted = System.nanoTime();
+        private final CommandProgress progress = new CommandProgress() {
+            @Override
+            void changed() {
+                report(this);
+            }
+        };
+
+        CommandTask(BackgroundCommand command) {
+            this.command = command;
+            updateTitle(command.getClass().getSimpleName().replace("Command", ""));
+        }
+
+        @Override
+        protected Boolean call() throws Exception {
+            boolean completed;
+            try {
+                completed = command.run(progress);
+            } catch (IOException e) {
+                opLog.error("command.failed", "command=" + command.getClass().getSimpleName() + " error=" + e);
+                completed = false;
+            }
+            if (progress.isCancelled() || isCancelled()) {
+                fxUpdates.post(command::cancelled);
+                return false;
+            }
+            if (completed) {
+                fxUpdates.post(() -> {
+                    command.finish();
+                    history.push(command);
+                    // from the menu click to the finished model update
+                    metrics.recordCommand(command.getClass().getSimpleName(), System.nanoTime() - submitted);
+                });
+            }
+            return completed;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            progress.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        private void report(CommandProgress progress) {
+            long totalBytes = progress.getTotalBytes();
+            if (totalBytes > 0) {
+                updateProgress(progress.getBytesDone(), totalBytes);
+            } else if (progress.getTotalFiles() > 0) {
+                updateProgress(progress.getFilesDone(), progress.getTotalFiles());
+            }
+            updateMessage(progress.getFilesDone() + " files, " + progress.getBytesDone() + " bytes");
+        }
+    }
+
+    /**
+     * Collects tree mutations from worker threads and applies everything that is
+     * pending in a single Platform.runLater, so bursts cost one FX pulse.
+     */
+    public static class FxUpdateQueue {
+
+        private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile long scheduledAt;
+
+        void post(Runnable update) {
+            pending.add(update);
+            if (scheduled.compareAndSet(false, true)) {
+                scheduledAt = System.nanoTime();
+                Platform.runLater(this::drain);
+            }
+        }
+
+        private void drain() {
+            long started = System.nanoTime();
+            metrics.fxDelay.record(started - scheduledAt);
+            scheduled.set(false);
+            Runnable update;
+            while ((update = pending.poll()) != null) {
+                update.run();
+            }
+            metrics.fxBusy.record(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Progress bar, status text and cancel button for the most recent background command.
+     */
+    public static class CommandStatusBar extends HBox {
+
+        private final ProgressBar progressBar = new ProgressBar();
+        private final Label message = new Label();
+        private final Button cancelButton = new Button("Cancel");
+
+        CommandStatusBar() {
+            super(8);
+            HBox.setHgrow(message, Priority.ALWAYS);
+            getChildren().addAll(progressBar, message, cancelButton);
+            setVisible(false);
+            setManaged(false);
+        }
+
+        void track(Task<?> task) {
+            progressBar.progressProperty().bind(task.progressProperty());
+            message.textProperty().bind(task.titleProperty().concat(": ").concat(task.messageProperty()));
+            cancelButton.setOnAction(e -> task.cancel());
+            visibleProperty().bind(task.runningProperty());
+            managedProperty().bind(task.runningProperty());
+        }
+    }
+
+    /**
+     * Query box over the NameIndex. Every keystroke cancels the running query
+     * and starts the new one on the search thread; matches show up in the
+     * result list batch by batch. Double clicking a match reveals it in the tree.
+     */
+    public static class SearchPane extends VBox {
+
+        private static final int LIMIT = 10_000;
+
+        private final TextField queryField = new TextField();
+        private final ListView<FileObj> results = new ListView<>();
+        private final Label status = new Label();
+        private final AtomicInteger generation = new AtomicInteger();
+        private final ExecutorService searchThread = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "name-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        SearchPane(NameIndex index, Consumer<FileObj> reveal) {
+            super(4);
+            queryField.setPromptText("Search names, * and ? as wildcards");
+            queryField.textProperty().addListener((observable, oldText, text) -> search(index, text.trim()));
+            queryField.focusedProperty().addListener((observable, wasFocused, focused) -> {
+                if (focused) {
+                    searchThread.execute(index::catchUp);
+                }
+            });
+            results.setCellFactory(view -> new ListCell<FileObj>() {
+                @Override
+                protected void updateItem(FileObj item, boolean empty) {
+                    super.updateItem(item, empty);
+                    setText(empty || item == null ? null : item.getFileName());
+                }
+            });
+            results.setOnMouseClicked(e -> {
+                FileObj selected = results.getSelectionModel().getSelectedItem();
+                if (e.getClickCount() == 2 && selected != null) {
+                    reveal.accept(selected);
+                }
+            });
+            getChildren().addAll(queryField, results, status);
+            showResults(false);
+        }
+
+        private void search(NameIndex index, String query) {
+            int current = generation.incrementAndGet();
+            results.getItems().clear();
+            showResults(!query.isEmpty());
+            if (query.isEmpty()) {
+                return;
+            }
+            status.setText("Searching...");
+            searchThread.execute(() -> {
+                if (generation.get() != current) {
+                    return;
+                }
+                long started = System.nanoTime();
+                int found = index.search(query, LIMIT, () -> generation.get() != current,
+                        batch -> fxUpdates.post(() -> {
+                            if (generation.get() == current) {
+                                results.getItems().addAll(batch);
+                            }
+                        }));
+                long millis = (System.nanoTime() - started) / 1_000_000;
+                fxUpdates.post(() -> {
+                    if (generation.get() == current) {
+                        status.setText(found + (found >= LIMIT ? "+" : "") + " matches in " + millis + " ms");
+                    }
+                });
+            });
+        }
+
+        private void showResults(boolean show) {
+            results.setVisible(show);
+            results.setManaged(show);
+            status.setVisible(show);
+            status.setManaged(show);
+        }
+    }
+
+    public static class ComputeSizeCommand extends BackgroundCommand {
+
+        private FileObj file;
+        private long totalSize;
+
+        ComputeSizeCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+            this.context = copyPasteContext.getClone();
+        }
+
+        @Override
+        boolean prepare() {
+            // the cell the menu was opened on, not whatever happens to be selected
+            file = getItem();
+            return file != null;
+        }
+
+        @Override
+        boolean run(CommandProgress progress) {
+            totalSize = file.computeSize();
+            return true;
+        }
+
+        @Override
+        void finish() {
+            Alert alert = new Alert(Alert.AlertType.INFORMATION);
+            alert.setTitle("Size Information");
+            alert.setHeaderText(null);
+            alert.setContentText("Total size of " + file.getShortName() + " : " +
+                    totalSize + " Bytes.");
+            alert.show();
+        }
+
+        @Override
+        boolean isUndoable() {
+            return false;
+        }
+
+        @Override
+        public boolean undo() {
+            return false;
+        }
+    }
+
+    /**
+     * Looks for files with the same content below a folder. Groups show up in
+     * their own window while the search runs, and closing it cancels the search.
+     */
+    public static class FindDuplicatesCommand extends BackgroundCommand {
+
+        private FolderFileObj folder;
+        private DuplicatesView view;
+        private int groups;
+        private volatile CommandProgress progress;
+        private volatile boolean closed;
+
+        FindDuplicatesCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+            this.context = copyPasteContext.getClone();
+        }
+
+        @Override
+        boolean prepare() {
+            if (!(getItem() instanceof FolderFileObj)) {
+                return false;
+            }
+            folder = (FolderFileObj) getItem();
+            view = new DuplicatesView(folder, FileManager::revealInTree);
+            view.setOnHidden(e -> {
+                closed = true;
+                CommandProgress running = progress;
+                if (running != null) {
+                    running.cancel();
+                }
+            });
+            view.show();
+            return true;
+        }
+
+        @Override
+        boolean run(CommandProgress progress) {
+            this.progress = progress;
+            if (closed) {
+                progress.cancel();
+            }
+            groups = duplicateFinder.find(folder, progress, group -> fxUpdates.post(() -> view.addGroup(group)));
+            return true;
+        }
+
+        @Override
+        void finish() {
+            view.done(groups + " groups of duplicates");
+        }
+
+        @Override
+        void cancelled() {
+            view.done("Cancelled");
+        }
+
+        @Override
+        boolean isUndoable() {
+            return false;
+        }
+
+        @Override
+        public boolean undo() {
+            return false;
+        }
+    }
+
+    /**
+     * Groups of identical files, added as the finder confirms them. Double
+     * clicking a file shows it in the main tree.
+     */
+    public static class DuplicatesView extends Stage {
+
+        private final TreeItem<Object> groups = new TreeItem<>();
+        private final Label status = new Label("Searching...");
+        private long wasted;
+
+        DuplicatesView(FolderFileObj folder, Consumer<FileObj> reveal) {
+            TreeView<Object> tree = new TreeView<>(groups);
+            tree.setShowRoot(false);
+            tree.setCellFactory(view -> new TreeCell<Object>() {
+                @Override
+                protected void updateItem(Object item, boolean empty) {
+                    super.updateItem(item, empty);
+                    if (empty || item == null) {
+                        setText(null);
+                    } else {
+                        setText(item instanceof FileObj ? ((FileObj) item).getFileName() : item.toString());
+                    }
+                }
+            });
+            tree.setOnMouseClicked(e -> {
+                TreeItem<Object> selected = tree.getSelectionModel().getSelectedItem();
+                if (e.getClickCount() == 2 && selected != null && selected.getValue() instanceof FileObj) {
+                    reveal.accept((FileObj) selected.getValue());
+                }
+            });
+            VBox box = new VBox(4, tree, status);
+            VBox.setVgrow(tree, Priority.ALWAYS);
+            setTitle("Duplicates in " + folder.getFileName());
+            setScene(new Scene(box, 600, 400));
+        }
+
+        void addGroup(List<SingleFileObj> files) {
+            long size = files.get(0).getSize();
+            TreeItem<Object> group = new TreeItem<>(files.size() + " copies of " + size + " bytes");
+            for (SingleFileObj file : files) {
+                group.getChildren().add(new TreeItem<>(file));
+            }
+            group.setExpanded(true);
+            groups.getChildren().add(group);
+            wasted += size * (files.size() - 1);
+            status.setText(groups.getChildren().size() + " groups so far, " + wasted + " bytes in extra copies");
+        }
+
+        void done(String message) {
+            status.setText(message + ", " + wasted + " bytes in extra copies");
+        }
+    }
+
+    /**
+     * Shows where the space below a folder goes. The analysis lists whatever
+     * part of the tree is not loaded yet in rounds, and the window shows the
+     * result of every round; closing it cancels the analysis.
+     */
+    public static class DiskUsageCommand extends BackgroundCommand {
+
+        private FolderFileObj folder;
+        private DiskUsageView view;
+        private volatile CommandProgress progress;
+        private volatile boolean closed;
+
+        DiskUsageCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+            this.context = copyPasteContext.getClone();
+        }
+
+        @Override
+        boolean prepare() {
+            if (!(getItem() instanceof FolderFileObj)) {
+                return false;
+            }
+            folder = (FolderFileObj) getItem();
+            view = new DiskUsageView(folder, FileManager::revealInTree);
+            view.setOnHidden(e -> {
+                closed = true;
+                CommandProgress running = progress;
+                if (running != null) {
+                    running.cancel();
+                }
+            });
+            view.show();
+            return true;
+        }
+
+        @Override
+        boolean run(CommandProgress progress) {
+            this.progress = progress;
+            if (closed) {
+                progress.cancel();
+            }
+            DiskUsage.refine(folder, diskUsageTop, progress, usage -> fxUpdates.post(() -> view.update(usage)));
+            return true;
+        }
+
+        @Override
+        void finish() {
+            // the last round's update is queued ahead of this, the view is current
+        }
+
+        @Override
+        void cancelled() {
+            view.cancelled();
+        }
+
+        @Override
+        boolean isUndoable() {
+            return false;
+        }
+
+        @Override
+        public boolean undo() {
+            return false;
+        }
+    }
+
+    /**
+     * The largest files and folders of a disk usage analysis next to a treemap
+     * of the folder. Double-clicking an entry in either shows it in the tree.
+     */
+    public static class DiskUsageView extends Stage {
+
+        private final TreeItem<Object> largestFiles = new TreeItem<>("Largest files");
+        private final TreeItem<Object> largestFolders = new TreeItem<>("Largest folders");
+        private final Treemap treemap;
+        private final Label status = new Label("Analyzing...");
+        private DiskUsage usage;
+
+        DiskUsageView(FolderFileObj folder, Consumer<FileObj> reveal) {
+            TreeItem<Object> root = new TreeItem<>();
+            root.getChildren().add(largestFiles);
+            root.getChildren().add(largestFolders);
+            largestFiles.setExpanded(true);
+            largestFolders.setExpanded(true);
+            TreeView<Object> tree = new TreeView<>(root);
+            tree.setShowRoot(false);
+            tree.setCellFactory(view -> new TreeCell<Object>() {
+                @Override
+                protected void updateItem(Object item, boolean empty) {
+                    super.updateItem(item, empty);
+                    if (empty || item == null) {
+                        setText(null);
+                    } else if (item instanceof DiskUsage.Entry) {
+                        DiskUsage.Entry entry = (DiskUsage.Entry) item;
+                        setText(entry.size + "  " + entry.fileObj.getFileName());
+                    } else {
+                        setText(item.toString());
+                    }
+                }
+            });
+            tree.setOnMouseClicked(e -> {
+                TreeItem<Object> selected = tree.getSelectionModel().getSelectedItem();
+                if (e.getClickCount() == 2 && selected != null && selected.getValue() instanceof DiskUsage.Entry) {
+                    reveal.accept(((DiskUsage.Entry) selected.getValue()).fileObj);
+                }
+            });
+            treemap = new Treemap(reveal, this::hover);
+            SplitPane split = new SplitPane(tree, treemap);
+            split.setDividerPositions(0.35);
+            VBox box = new VBox(4, split, status);
+            VBox.setVgrow(split, Priority.ALWAYS);
+            setTitle("Disk usage of " + folder.getFileName());
+            setScene(new Scene(box, 1000, 600));
+        }
+
+        void update(DiskUsage usage) {
+            this.usage = usage;
+            fill(largestFiles, usage.largestFiles);
+            fill(largestFolders, usage.largestFolders);
+            treemap.setUsage(usage);
+            status.setText(summary());
+        }
+
+        void cancelled() {
+            status.setText("Cancelled, " + (usage == null ? "nothing analyzed" : summary()));
+        }
+
+        private String summary() {
+            return usage.totalSize + " bytes in " + usage.fileCount + " files"
+                    + (usage.complete ? "" : " so far, listing the rest...");
+        }
+
+        private void hover(FileObj fileObj) {
+            if (fileObj == null) {
+                status.setText(usage == null ? "" : summary());
+            } else {
+                status.setText(usage.sizeOf(fileObj) + " bytes  " + fileObj.getFileName());
+            }
+        }
+
+        private static void fill(TreeItem<Object> group, List<DiskUsage.Entry> entries) {
+            List<TreeItem<Object>> items = new ArrayList<>(entries.size());
+            for (DiskUsage.Entry entry : entries) {
+                items.add(new TreeItem<>(entry));
+            }
+            group.getChildren().setAll(items);
+        }
+    }
+
+    /**
+     * A squarified treemap of one folder, painted on a canvas. Only tiles that
+     * come out at least a few pixels wide are laid out: smaller children are
+     * never sorted or visited, and a folder's children go into its tile only
+     * while there is room to show them. Clicking a folder zooms into it, the
+     * right button zooms back out.
+     */
+    public static class Treemap extends Pane {
+
+        private static final double MIN_SIDE = 3;
+        private static final double HEADER = 14;
+        private static final int MAX_NESTING = 6;
+
+        private static final class Tile {
+
+            final FileObj fileObj;
+            final double x, y, width, height;
+
+            Tile(FileObj fileObj, double x, double y, double width, double height) {
+                this.fileObj = fileObj;
+                this.x = x;
+                this.y = y;
+                this.width = width;
+                this.height = height;
+            }
+
+            boolean contains(double px, double py) {
+                return px >= x && px < x + width && py >= y && py < y + height;
+            }
+        }
+
+        private final Canvas canvas = new Canvas();
+        // parents before their children, so the last hit is the innermost tile
+        private final List<Tile> tiles = new ArrayList<>();
+        private DiskUsage usage;
+        private FolderFileObj shown;
+
+        Treemap(Consumer<FileObj> reveal, Consumer<FileObj> hover) {
+            getChildren().add(canvas);
+            canvas.setOnMouseClicked(e -> {
+                if (e.getButton() == MouseButton.SECONDARY) {
+                    if (usage != null && shown != usage.root && shown.getParent() != null) {
+                        shown = shown.getParent();
+                        paint();
+                    }
+                    return;
+                }
+                if (e.getClickCount() == 2) {
+                    Tile tile = tileAt(e.getX(), e.getY(), false);
+                    if (tile != null) {
+                        reveal.accept(tile.fileObj);
+                    }
+                    return;
+                }
+                Tile folder = tileAt(e.getX(), e.getY(), true);
+                if (folder != null) {
+                    shown = (FolderFileObj) folder.fileObj;
+                    paint();
+                }
+            });
+            canvas.setOnMouseMoved(e -> {
+                Tile tile = tileAt(e.getX(), e.getY(), false);
+                hover.accept(tile == null ? null : tile.fileObj);
+            });
+            canvas.setOnMouseExited(e -> hover.accept(null));
+        }
+
+        void setUsage(DiskUsage usage) {
+            if (this.usage == null || this.usage.root != usage.root) {
+                shown = usage.root;
+            }
+            this.usage = usage;
+            paint();
+        }
+
+        @Override
+        protected void layoutChildren() {
+            if (canvas.getWidth() != getWidth() || canvas.getHeight() != getHeight()) {
+                canvas.setWidth(getWidth());
+                canvas.setHeight(getHeight());
+                paint();
+            }
+        }
+
+        private Tile tileAt(double x, double y, boolean foldersOnly) {
+            for (int i = tiles.size() - 1; i >= 0; i--) {
+                Tile tile = tiles.get(i);
+                if (tile.contains(x, y) && (!foldersOnly || tile.fileObj instanceof FolderFileObj)) {
+                    return tile;
+                }
+            }
+            return null;
+        }
+
+        private void paint() {
+            GraphicsContext graphics = canvas.getGraphicsContext2D();
+            graphics.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+            tiles.clear();
+            if (usage != null) {
+                layout(graphics, shown, 0, 0, canvas.getWidth(), canvas.getHeight(), 0);
+            }
+        }
+
+        /**
+         * Lays the children of folder out in the given area, a row at a time,
+         * each row growing while that brings its tiles closer to squares.
+         */
+        private void layout(GraphicsContext graphics, FolderFileObj folder,
+                            double x, double y, double width, double height, int nesting) {
+            FileNode node = fileNodes.get(folder.getFileId());
+            if (node == null || width < MIN_SIDE || height < MIN_SIDE) {
+                return;
+            }
+            List<FileObj> children = node.children;
+            long total = 0;
+            for (int i = 0; i < children.size(); i++) {
+                total += usage.sizeOf(children.get(i));
+            }
+            if (total == 0) {
+                return;
+            }
+            double scale = width * height / total;
+            // anything below this size could not get a tile of MIN_SIDE by MIN_SIDE
+            double smallest = MIN_SIDE * MIN_SIDE / scale;
+            List<FileObj> visible = new ArrayList<>();
+            for (int i = 0; i < children.size(); i++) {
+                if (usage.sizeOf(children.get(i)) >= smallest) {
+                    visible.add(children.get(i));
+                }
+            }
+            visible.sort(Comparator.comparingLong(usage::sizeOf).reversed());
+
+            int start = 0;
+            while (start < visible.size() && width >= MIN_SIDE && height >= MIN_SIDE) {
+                double side = Math.min(width, height);
+                double rowArea = usage.sizeOf(visible.get(start)) * scale;
+                double worst = worstRatio(rowArea, rowArea, rowArea, side);
+                int end = start + 1;
+                while (end < visible.size()) {
+                    double area = usage.sizeOf(visible.get(end)) * scale;
+                    double ratio = worstRatio(rowArea + area, usage.sizeOf(visible.get(start)) * scale, area, side);
+                    if (ratio > worst) {
+                        break;
+                    }
+                    rowArea += area;
+                    worst = ratio;
+                    end++;
+                }
+                double thickness = rowArea / side;
+                double offset = 0;
+                for (int i = start; i < end; i++) {
+                    double length = usage.sizeOf(visible.get(i)) * scale / thickness;
+                    if (width >= height) {
+                        place(graphics, visible.get(i), x, y + offset, thickness, length, nesting);
+                    } else {
+                        place(graphics, visible.get(i), x + offset, y, length, thickness, nesting);
+                    }
+                    offset += length;
+                }
+                if (width >= height) {
+                    x += thickness;
+                    width -= thickness;
+                } else {
+                    y += thickness;
+                    height -= thickness;
+                }
+                start = end;
+            }
+            if (width >= 1 && height >= 1) {
+                // the children too small for a tile of their own
+                graphics.setFill(Color.gray(0.8));
+                graphics.fillRect(x, y, width, height);
+            }
+        }
+
+        /**
+         * The aspect ratio of the most elongated tile in a row of the given
+         * total area laid along side, from its largest and smallest tile.
+         */
+        private static double worstRatio(double rowArea, double largest, double smallest, double side) {
+            double sideSquared = side * side;
+            double rowSquared = rowArea * rowArea;
+            return Math.max(sideSquared * largest / rowSquared, rowSquared / (sideSquared * smallest));
+        }
+
+        private void place(GraphicsContext graphics, FileObj fileObj,
+                           double x, double y, double width, double height, int nesting) {
+            tiles.add(new Tile(fileObj, x, y, width, height));
+            boolean folder = fileObj instanceof FolderFileObj;
+            graphics.setFill(folder
+                    ? Color.hsb(210, 0.25, Math.max(0.5, 0.95 - 0.07 * nesting))
+                    : Color.hsb(Math.floorMod(extension(fileObj.getShortName()).hashCode(), 360), 0.45, 0.9));
+            graphics.fillRect(x, y, width, height);
+            graphics.setStroke(Color.WHITE);
+            graphics.strokeRect(x, y, width, height);
+            if (width > 40 && height > HEADER) {
+                graphics.setFill(Color.BLACK);
+                graphics.fillText(fileObj.getShortName(), x + 2, y + HEADER - 3, width - 4);
+            }
+            if (folder && nesting < MAX_NESTING && height > HEADER + MIN_SIDE) {
+                layout(graphics, (FolderFileObj) fileObj, x + 1, y + HEADER, width - 2, height - HEADER - 1,
+                        nesting + 1);
+            }
+        }
+
+        private static String extension(String name) {
+            int dot = name.lastIndexOf('.');
+            return dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+        }
+    }
+
+    /**
+     * Unhooks an entry from its parent tree item and FileNode and takes its size
+     * out of the parent totals. The entry's own FileNode stays registered.
+     */
+    private static FileNode detachFileNode(TreeItem<FileObj> c) {
+        // the item may have been released with a collapsed branch since it was picked
+        TreeItem<FileObj> parentItem = c.getParent();
+        if (parentItem != null) {
+            parentItem.getChildren().remove(c);
+        }
+        FileObj fileObj = c.getValue();
+        FileNode node = fileNodes.get(fileObj.getFileId());
+        FileNode parentNode = fileObj.getParent() == null ? null : fileNodes.get(fileObj.getParent().getFileId());
+        if (parentNode == null) {
+            return node;
+        }
+        parentNode.removeChildren(Collections.singletonList(fileObj));
+        subtractFromTotals(parentNode, fileObj);
+        return node;
+    }
+
+    /**
+     * Re-parents an entry that was moved on disk, keeping its FileNode subtree
+     * and tree item (with their expanded state) instead of rebuilding them.
+     */
+    private static void moveFileNode(TreeItem<FileObj> item, TreeItem<FileObj> destnItem, String newName) {
+        FileObj fileObj = item.getValue();
+        FileNode node = detachFileNode(item);
+        String oldFileName = fileObj.getFileName();
+        fileObj.moveTo((FolderFileObj) destnItem.getValue(), newName);
+        relocateSubtree(fileObj, oldFileName);
+        nameIndex.rename(fileObj);
+
+        FileNode destnNode = fileNodes.get(destnItem.getValue().getFileId());
+        if (destnNode == null || !destnNode.loaded) {
+            // the destination was never listed, listing it picks the moved entry up from disk
+            forgetSubtree(fileObj);
+            destnItem.getChildren();
+            return;
+        }
+        ObservableList<TreeItem<FileObj>> children = destnItem.getChildren();
+        removeChildNamed(destnNode, fileObj.getShortName());
+        destnNode.addChildren(Collections.singletonList(fileObj));
+        if (node == null) {
+            destnNode.addToTotals(fileObj.computeSize(), 1);
+        } else {
+            node.parent = destnNode;
+            if (node.totalsComplete) {
+                destnNode.addToTotals(node.subtreeSize, node.fileCount);
+            } else {
+                destnNode.invalidateTotals();
+            }
+        }
+        children.add(item);
+    }
+
+    public static class DeleteFileCommand extends BackgroundCommand {
+
+        private FileObj fileObj;
+        private StagedEntry entry;
+        private volatile boolean ran;
+        private boolean trashed;
+        // the entry has no trash on its file system and the user agreed to lose it
+        private boolean permanent;
+        // set when a permanent delete left part of the entry behind
+        private volatile boolean survived;
+
+        DeleteFileCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+            this.context = copyPasteContext.getClone();
+        }
+
+        DeleteFileCommand(TextFieldTreeCellImpl treeCell, FileObj target) {
+            this(treeCell);
+            this.target = target;
+        }
+
+        @Override
+        boolean prepare() {
+            fileObj = getItem();
+            if (fileObj == null || fileObj.getParent() == null) {
+                return false;
+            }
+            entry = new StagedEntry(fileObj);
+            if (!trash.canStage(Paths.get(fileObj.getFileName()))) {
+                permanent = confirmPermanentDelete(fileObj);
+                return permanent;
+            }
+            return true;
+        }
+
+        private static boolean confirmPermanentDelete(FileObj fileObj) {
+            Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+            alert.setTitle("Delete");
+            alert.setHeaderText(fileObj.getFileName() + " cannot be moved to the trash."
+                    + " Delete it permanently? This cannot be undone.");
+            return alert.showAndWait().orElse(ButtonType.CANCEL) == ButtonType.OK;
+        }
+
+        @Override
+        boolean run(CommandProgress progress) {
+            ran = true;
+            if (!permanent) {
+                trashed = entry.moveToTrash();
+                if (trashed) {
+                    progress.addFiles(1);
+                }
+                // a failed rename into the trash never turns into a permanent delete
+                return trashed;
+            }
+            Path path = Paths.get(fileObj.getFileName());
+            FileNode node = fileNodes.get(fileObj.getFileId());
+            if (node != null && node.totalsComplete) {
+                progress.setTotal(node.subtreeSize, node.fileCount);
+            }
+            int failed = deleteEngine.deleteTree(path, progress);
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                return true;
+            }
+            // part of the entry is left, the tree shows it afresh and lists it again when expanded
+            survived = true;
+            opLog.error("delete.incomplete", "path=" + path + " failed=" + failed);
+            fxUpdates.post(() -> {
+                removeFromModel(fileObj);
+                addToModel(fileObj);
+            });
+            return false;
+        }
+
+        @Override
+        void finish() {
+            opLog.summary(trashed ? "delete.trashed" : "delete.removed", "path=" + fileObj.getFileName());
+            removeFromModel(fileObj);
+        }
+
+        @Override
+        void cancelled() {
+            if (ran && !survived) {
+                finish();
+            }
+        }
+
+        FileObj getDeleted() {
+            return fileObj;
+        }
+
+        @Override
+        boolean isUndoable() {
+            return trashed;
+        }
+
+        @Override
+        boolean isIrreversible() {
+            return permanent;
+        }
+
+        @Override
+        public boolean undo() {
+            return entry.restore();
+        }
+
+        @Override
+        public boolean redo() {
+            return entry.stage();
+        }
+
+        /**
+         * The disk half of redo; the batch takes the entry out of the model.
+         */
+        boolean redoOnDisk() {
+            return entry.moveToTrash();
+        }
+
+        @Override
+        long getStagedBytes() {
+            return entry.getBytes();
+        }
+
+        @Override
+        void discard() {
+            entry.purge();
+        }
+    }
+
+    /**
+     * Composite of background commands that act as one: every part is planned
+     * up front, the parts run in parallel, their tree updates are applied
+     * together in one FX update and undo takes them all back. The parts come
+     * from the top-level entries of a selection, so no two of them touch the
+     * same subtree.
+     */
+    public static class BatchCommand extends BackgroundCommand {
+
+        private final List<BackgroundCommand> parts;
+        private final List<BackgroundCommand> completed = Collections.synchronizedList(new ArrayList<>());
+
+        BatchCommand(TextFieldTreeCellImpl treeCell, List<BackgroundCommand> parts) {
+            super(treeCell);
+            this.parts = new ArrayList<>(parts);
+        }
+
+        @Override
+        boolean prepare() {
+            parts.removeIf(part -> !part.prepare());
+            return !parts.isEmpty();
+        }
+
+        @Override
+        boolean run(CommandProgress progress) {
+            long started = System.nanoTime();
+            progress.setTotal(-1, parts.size());
+            // parts report bytes, the batch counts finished parts
+            CommandProgress partProgress = new CommandProgress() {
+                @Override
+                void setTotal(long totalBytes, long totalFiles) {
+                }
+
+                @Override
+                void addBytes(long bytes) {
+                    progress.addBytes(bytes);
+                }
+
+                @Override
+                void addFiles(long files) {
+                }
+
+                @Override
+                boolean isCancelled() {
+                    return progress.isCancelled();
+                }
+            };
+            AtomicInteger failed = new AtomicInteger();
+            parts.parallelStream().forEach(part -> {
+                if (progress.isCancelled()) {
+                    return;
+                }
+                try {
+                    if (part.run(partProgress)) {
+                        completed.add(part);
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    opLog.error("batch.part.failed", "command=" + part.getClass().getSimpleName() + " error=" + e);
+                }
+                progress.addFiles(1);
+            });
+            opLog.summary("batch.done", "parts=" + parts.size() + " completed=" + completed.size()
+                    + " failed=" + failed.get() + " ms=" + (System.nanoTime() - started) / 1_000_000);
+            return !completed.isEmpty();
+        }
+
+        @Override
+        void finish() {
+            finishParts(completed);
+        }
+
+        @Override
+        void cancelled() {
+            // parts that got through changed the disk, the tree has to show it
+            finishParts(completed);
+            for (BackgroundCommand part : parts) {
+                if (!completed.contains(part)) {
+                    part.cancelled();
+                }
+            }
+        }
+
+        // deletes leave the model together, other parts finish one by one
+        private static void finishParts(List<BackgroundCommand> finished) {
+            List<FileObj> deleted = new ArrayList<>();
+            for (BackgroundCommand part : finished) {
+                if (part instanceof DeleteFileCommand) {
+                    deleted.add(((DeleteFileCommand) part).getDeleted());
+                } else {
+                    part.finish();
+                }
+            }
+            if (!deleted.isEmpty()) {
+                removeFromModel(deleted);
+                opLog.summary("delete.batch", "entries=" + deleted.size());
+            }
+        }
+
+        @Override
+        boolean isUndoable() {
+            for (BackgroundCommand part : completed) {
+                if (part.isUndoable()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        boolean isIrreversible() {
+            for (BackgroundCommand part : completed) {
+                if (part.isIrreversible()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean undo() {
+            boolean undone = false;
+            for (int i = completed.size() - 1; i >= 0; i--) {
+                BackgroundCommand part = completed.get(i);
+                if (part.isUndoable() && part.undo()) {
+                    undone = true;
+                }
+            }
+            return undone;
+        }
+
+        @Override
+        public boolean redo() {
+            boolean redone = false;
+            List<FileObj> deleted = new ArrayList<>();
+            for (BackgroundCommand part : completed) {
+                if (!part.isUndoable()) {
+                    continue;
+                }
+                if (part instanceof DeleteFileCommand) {
+                    DeleteFileCommand delete = (DeleteFileCommand) part;
+                    if (delete.redoOnDisk()) {
+                        deleted.add(delete.getDeleted());
+                    }
+                } else if (part.redo()) {
+                    redone = true;
+                }
+            }
+            removeFromModel(deleted);
+            return redone || !deleted.isEmpty();
+        }
+
+        @Override
+        long getStagedBytes() {
+            long bytes = 0;
+            for (BackgroundCommand part : completed) {
+                bytes += part.getStagedBytes();
+            }
+            return bytes;
+        }
+
+        @Override
+        void discard() {
+            for (BackgroundCommand part : completed) {
+                part.discard();
+            }
+        }
+    }
+
+    /**
+     * The entries a menu action on the given cell applies to: the whole
+     * selection when the cell is part of it, otherwise just the cell's item.
+     * Entries below another selected folder are left out, the folder covers them.
+     */
+    private static List<TreeItem<FileObj>> actionTargets(TextFieldTreeCellImpl cell) {
+        TreeItem<FileObj> cellItem = cell.getTreeItem();
+        if (treeView == null) {
+            return Collections.singletonList(cellItem);
+        }
+        List<TreeItem<FileObj>> selected = treeView.getSelectionModel().getSelectedItems();
+        if (selected.size() < 2 || !selected.contains(cellItem)) {
+            return Collections.singletonList(cellItem);
+        }
+        Set<FileObj> chosen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (TreeItem<FileObj> item : selected) {
+            if (item != null) {
+                chosen.add(item.getValue());
+            }
+        }
+        List<TreeItem<FileObj>> targets = new ArrayList<>();
+        for (TreeItem<FileObj> item : selected) {
+            if (item == null) {
+                continue;
+            }
+            boolean covered = false;
+            for (FileObj parent = item.getValue().getParent(); parent != null && !covered; parent = parent.getParent()) {
+                covered = chosen.contains(parent);
+            }
+            if (!covered) {
+                targets.add(item);
+            }
+        }
+        return targets;
+    }
+
+    public static class RenameFileCommand extends Command {
+
+        private FileObj fileObj;
+        private String oldShortName;
+        private String newShortName;
+
+        RenameFileCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+            this.context = copyPasteContext.getClone();
+        }
+
+        @Override
+        public boolean execute() {
+
+            fileObj = this.treeCell.getItem();
+            TextField input = this.treeCell.getTextField();
+            oldShortName = fileObj.getShortName();
+            newShortName = input.getText();
+
+            boolean renamed = renameEntry(fileObj, newShortName);
+
+            this.treeCell.commitEdit(fileObj);
+
+            return renamed;
+        }
+
+        @Override
+        public boolean undo() {
+            return renameEntry(fileObj, oldShortName);
+        }
+
+        @Override
+        public boolean redo() {
+            return renameEntry(fileObj, newShortName);
+        }
+    }
+
+    /**
+     * Renames an entry on disk and in the model, leaving both alone when the
+     * rename fails. Like moveEntry, it never replaces a sibling of that name.
+     */
+    private static boolean renameEntry(FileObj fileObj, String shortName) {
+        String oldFullFileName = fileObj.getFileName();
+        String oldShortName = fileObj.getShortName();
+        fileObj.setShortName(shortName);
+        try {
+            Files.move(Paths.get(oldFullFileName), Paths.get(fileObj.getFileName()));
+        } catch (FileAlreadyExistsException e) {
+            opLog.error("rename.failed", "src=" + oldFullFileName + " dst=" + fileObj.getFileName() + " exists=true");
+            fileObj.setShortName(oldShortName);
+            return false;
+        } catch (IOException | InvalidPathException e) {
+            opLog.error("rename.failed", "src=" + oldFullFileName + " dst=" + fileObj.getFileName() + " error=" + e);
+            fileObj.setShortName(oldShortName);
+            return false;
+        }
+        opLog.summary("rename.done", "src=" + oldFullFileName + " dst=" + fileObj.getFileName());
+        relocateSubtree(fileObj, oldFullFileName);
+        nameIndex.rename(fileObj);
+        if (treeView != null) {
+            // cells only read the name when their item changes
+            treeView.refresh();
+        }
+        return true;
+    }
+
+    /**
+     * Command that creates one new entry. Undo moves the entry into the trash,
+     * keeping whatever was written to it since, and redo brings it back.
+     */
+    public static abstract class CreateEntryCommand extends Command {
+
+        @SuppressWarnings("WeakerAccess")
+        protected FileObj newFileObj;
+        private StagedEntry undone;
+
+        CreateEntryCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+        }
+
+        @Override
+        public boolean undo() {
+            if (undone == null) {
+                undone = new StagedEntry(newFileObj);
+            }
+            return undone.stage();
+        }
+
+        @Override
+        public boolean redo() {
+            return undone != null && undone.restore();
+        }
+
+        @Override
+        long getStagedBytes() {
+            return undone == null ? 0 : undone.getBytes();
+        }
+
+        @Override
+        void discard() {
+            if (undone != null) {
+                undone.purge();
+            }
+        }
+    }
+
+    public static class AddFileCommand extends CreateEntryCommand {
+
+
+        AddFileCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+            this.context = copyPasteContext.getClone();
+        }
+
+        @Override
+        public boolean execute() {
+
+            try {
+
+                FileObj fileObj = getItem();
+                if (!(fileObj instanceof FolderFileObj)) {
+                    return false;
+                }
+
+                String newFullFileName = fileObj.getFileName().concat("/unknown.txt");
+                File newFile = new File(newFullFileName);
+                boolean created = newFile.createNewFile();
+                if (created) {
+                    opLog.summary("create.done", "path=" + newFullFileName);
+                }
+                newFileObj = new SingleFileObj((FolderFileObj) fileObj, "unknown.txt");
+                addFileNode(fileObj, newFileObj, treeCell.getTreeItem());
+                // an existing unknown.txt is only shown, there is nothing to undo
+                return created;
+
+            } catch (IOException ex) {
+                opLog.error("create.failed", "dir=" + getItem().getFileName() + " error=" + ex);
+            }
+
+            return false;
+        }
+    }
+
+    private static void addFileNode(FileObj parentFileObj, FileObj childFileObj, TreeItem<FileObj> parentTreeItem) {
+        FileNode childNode = childFileObj instanceof FolderFileObj ? new FileNode(childFileObj) : null;
+        addFileNode(parentFileObj, childFileObj, childNode, parentTreeItem);
+    }
+
+    private static void addFileNode(FileObj parentFileObj, FileObj childFileObj, FileNode childNode,
+                                    TreeItem<FileObj> parentTreeItem) {
+        if (parentTreeItem != null) {
+            // builds the parent's items from the model before the new entry goes in
+            parentTreeItem.getChildren();
+        }
+        Core.addFileNode(parentFileObj, childFileObj, childNode);
+    }
+
+    public static class AddDirectoryCommand extends CreateEntryCommand {
+
+        AddDirectoryCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+            this.context = copyPasteContext.getClone();
+        }
+
+        @Override
+        public boolean execute() {
+
+            FileObj fileObj = getItem();
+            if (!(fileObj instanceof FolderFileObj)) {
+                return false;
+            }
+
+            String newFullFileName = fileObj.getFileName().concat("/New Folder");
+            File newDir = new File(newFullFileName);
+            boolean created = newDir.mkdir();
+            if (created) {
+                opLog.summary("create.done", "path=" + newFullFileName);
+            } else {
+                opLog.error("create.failed", "path=" + newFullFileName + " exists=" + newDir.exists());
+            }
+            newFileObj = new FolderFileObj((FolderFileObj) fileObj, "New Folder");
+            this.context.setDestnFileObj(newFileObj);
+            FileNode newFileNode = new FileNode(newFileObj);
+            if (created) {
+                newFileNode.markEmpty();
+            }
+            addFileNode(fileObj, newFileObj, newFileNode, treeCell.getTreeItem());
+            return created;
+        }
+    }
+
+    public static class CopyCommand extends Command {
+
+
+        CopyCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+        }
+
+        @Override
+        public boolean execute() {
+
+            copyPasteContext.setOriginFileObj(this.treeCell.getItem());
+            copyPasteContext.setOrigins(actionTargets(this.treeCell));
+            copyPasteContext.setPastePending(true);
+            copyPasteContext.setActionType(CopyPasteContext.Actions.COPY);
+
+            return true;
+        }
+
+        @Override
+        boolean isUndoable() {
+            return false;
+        }
+
+        @Override
+        public boolean undo() {
+            copyPasteContext.setPastePending(false);
+            return true;
+        }
+    }
+
+    public static class CutCommand extends Command {
+
+        CutCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+        }
+
+        @Override
+        public boolean execute() {
+
+            copyPasteContext.setOriginFileObj(this.treeCell.getItem());
+            copyPasteContext.setOrigins(actionTargets(this.treeCell));
+            copyPasteContext.setPastePending(true);
+            copyPasteContext.setActionType(CopyPasteContext.Actions.CUT);
+            // cells are reused while scrolling, so remember the item itself
+            copyPasteContext.setOriginTreeItem(this.treeCell.getTreeItem());
+
+            return true;
+        }
+
+        @Override
+        boolean isUndoable() {
+            return false;
+        }
+
+        @Override
+        public boolean undo() {
+            copyPasteContext.setPastePending(false);
+            return true;
+        }
+    }
+
+    public static class PasteCommand extends BackgroundCommand {
+
+        private FileObj originFileObj;
+        private FileObj destnFileObj;
+        private TreeItem<FileObj> destnTreeItem;
+        private TreeItem<FileObj> originTreeItem;
+        private FileObj childFileObj;
+        private FileNode childNode;
+        private boolean moved = false;
+        // a cut merged into an existing entry on the same file store, and what it left behind
+        private boolean merged = false;
+        private int notMoved;
+        // where a moved entry came from, and the entry the model holds after the move
+        private FolderFileObj originParent;
+        private String originName;
+        private FileObj movedFileObj;
+        // a cut across file systems leaves its source in the trash until the history drops it
+        private StagedEntry stagedSource;
+        private boolean sourceDeleted = false;
+        // the copy, once undo put it into the trash
+        private StagedEntry stagedCopy;
+        // the paste merged into or replaced an entry of the same name, undo would take that along
+        private boolean targetExisted;
+
+        PasteCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+            this.context = copyPasteContext.getClone();
+        }
+
+        /**
+         * Pastes one entry of a multi-entry clipboard, described by its own context.
+         */
+        PasteCommand(TextFieldTreeCellImpl treeCell, CopyPasteContext context) {
+            super(treeCell);
+            this.context = context;
+        }
+
+        @Override
+        boolean prepare() {
+
+            if (!context.isPastePending()) {
+                return false;
+            }
+            originFileObj = context.getOriginFileObj();
+            destnTreeItem = this.treeCell.getTreeItem();
+            if (destnTreeItem.getValue() instanceof SingleFileObj && destnTreeItem.getParent() != null) {
+                // pasting onto a file drops the copy next to it
+                destnTreeItem = destnTreeItem.getParent();
+            }
+            destnFileObj = destnTreeItem.getValue();
+            Path originPath = Paths.get(originFileObj.getFileName()).toAbsolutePath().normalize();
+            Path targetPath = Paths.get(destnFileObj.getFileName(), originFileObj.getShortName())
+                    .toAbsolutePath().normalize();
+            if (targetPath.equals(originPath)) {
+                // pasting an entry where it already is would copy it onto itself
+                opLog.log("paste.skipped", "src=" + originPath + " same.place=true");
+                return false;
+            }
+            if (targetPath.startsWith(originPath)) {
+                opLog.error("paste.refused", "src=" + originPath + " dst=" + targetPath);
+                return false;
+            }
+            targetExisted = Files.exists(targetPath, LinkOption.NOFOLLOW_LINKS);
+            this.context.setDestnFileObj(destnFileObj);
+            if (this.context.getActionType() == CopyPasteContext.Actions.CUT) {
+                originTreeItem = this.context.getOriginTreeItem();
+                originParent = originFileObj.getParent();
+                originName = originFileObj.getShortName();
+                stagedSource = new StagedEntry(originFileObj);
+            }
+
+            FolderFileObj destnFolder = (FolderFileObj) destnFileObj;
+            if (originFileObj instanceof FolderFileObj) {
+                childFileObj = new FolderFileObj(destnFolder, originFileObj.getShortName());
+                childNode = new FileNode(childFileObj);
+                // the copy holds the same files, so known totals carry over
+                FileNode originNode = fileNodes.get(originFileObj.getFileId());
+                if (originNode != null && originNode.totalsComplete) {
+                    childNode.copyTotalsFrom(originNode);
+                }
+            } else {
+                childFileObj = new SingleFileObj(destnFolder, originFileObj.getShortName());
+            }
+            return true;
+        }
+
+        @Override
+        boolean run(CommandProgress progress) throws IOException {
+
+            File sourceFile = new File(originFileObj.getFileName());
+            File destnFile = new File(childFileObj.getFileName());
+            boolean cut = this.context.getActionType() == CopyPasteContext.Actions.CUT;
+
+            if (cut) {
+                // within one file store nothing is copied, not even to merge into an existing entry
+                int left = CopyEngine.moveIfSameStore(sourceFile.toPath(), destnFile.toPath());
+                if (left >= 0) {
+                    moved = !targetExisted;
+                    merged = targetExisted;
+                    notMoved = left;
+                    opLog.summary("move.done", "src=" + sourceFile + " dst=" + destnFile
+                            + " merged=" + merged + " failed=" + left);
+                    if (left > 0) {
+                        opLog.error("move.incomplete", "src=" + sourceFile + " kept=" + left);
+                    }
+                    return true;
+                }
+            }
+
+            int failures = 0;
+            if (originFileObj instanceof FolderFileObj) {
+                if (childNode.totalsComplete) {
+                    progress.setTotal(childNode.subtreeSize, childNode.fileCount);
+                }
+                failures = ((FolderFileObj) originFileObj).copyFolderTo(destnFile, progress);
+            } else {
+                progress.setTotal(originFileObj.computeSize(), 1);
+                ((SingleFileObj) originFileObj).copyFileTo(destnFile, progress);
+            }
+            if (progress.isCancelled()) {
+                return false;
+            }
+            if (failures > 0) {
+                // the copy lacks some entries, so its totals are not the original's
+                childNode = new FileNode(childFileObj);
+                opLog.error("paste.incomplete", "src=" + originFileObj.getFileName() + " dst=" + childFileObj.getFileName()
+                        + " failed=" + failures + " kept.original=" + cut);
+                return true;
+            }
+
+            if (cut) {
+                // different devices: the copy is complete, now the original goes to the trash,
+                // unless the paste cannot be undone and nothing would ever bring it back
+                if ((targetExisted || !stagedSource.moveToTrash())
+                        && deleteEngine.deleteTree(sourceFile.toPath(), progress) > 0) {
+                    opLog.error("cut.incomplete", "src=" + sourceFile);
+                }
+                sourceDeleted = true;
+                opLog.summary("cut.done", "src=" + sourceFile + " dst=" + childFileObj.getFileName());
+            }
+            return true;
+        }
+
+        @Override
+        void finish() {
+            if (moved || sourceDeleted || (merged && notMoved == 0)) {
+                // the original is gone, a second paste has nothing to move
+                copyPasteContext.setPastePending(false);
+            }
+            if (merged) {
+                // both sides changed on disk, so both are listed again when next opened
+                removeFromModel(originFileObj);
+                if (notMoved > 0) {
+                    addToModel(originFileObj);
+                }
+                FileNode mergedNode = childFileObj instanceof FolderFileObj ? new FileNode(childFileObj) : null;
+                addFileNode(destnFileObj, childFileObj, mergedNode, destnTreeItem);
+                return;
+            }
+            if (moved) {
+                if (originTreeItem != null && originTreeItem.getParent() != null) {
+                    moveFileNode(originTreeItem, destnTreeItem, childFileObj.getShortName());
+                    movedFileObj = originFileObj;
+                } else {
+                    removeFromModel(originFileObj);
+                    addFileNode(destnFileObj, childFileObj, destnTreeItem);
+                    movedFileObj = childFileObj;
+                }
+                return;
+            }
+            if (sourceDeleted) {
+                removeFromModel(originFileObj);
+            }
+            addFileNode(destnFileObj, childFileObj, childNode, destnTreeItem);
+        }
+
+        @Override
+        void cancelled() {
+            // whatever was copied before the cancel stays on disk, so it is shown with unknown totals
+            FileNode partialNode = childFileObj instanceof FolderFileObj ? new FileNode(childFileObj) : null;
+            childFileObj.setSize(-1);
+            addFileNode(destnFileObj, childFileObj, partialNode, destnTreeItem);
+        }
+
+        @Override
+        boolean isUndoable() {
+            if (targetExisted) {
+                return false;
+            }
+            // a source that could not be staged is gone, undo would lose the data
+            return moved || !sourceDeleted || stagedSource.isStaged();
+        }
+
+        @Override
+        public boolean undo() {
+            if (moved) {
+                return moveEntry(movedFileObj, originParent, originName);
+            }
+            if (stagedCopy == null) {
+                stagedCopy = new StagedEntry(childFileObj);
+            }
+            if (!stagedCopy.stage()) {
+                return false;
+            }
+            if (stagedSource != null && sourceDeleted && !stagedSource.restore()) {
+                stagedCopy.restore();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean redo() {
+            if (moved) {
+                return moveEntry(movedFileObj, (FolderFileObj) destnFileObj, childFileObj.getShortName());
+            }
+            if (!stagedCopy.restore()) {
+                return false;
+            }
+            if (stagedSource != null && sourceDeleted && !stagedSource.stage()) {
+                stagedCopy.stage();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        long getStagedBytes() {
+            long bytes = stagedCopy == null ? 0 : stagedCopy.getBytes();
+            return stagedSource == null ? bytes : bytes + stagedSource.getBytes();
+        }
+
+        @Override
+        void discard() {
+            if (stagedCopy != null) {
+                stagedCopy.purge();
+            }
+            if (stagedSource != null) {
+                stagedSource.purge();
+            }
+        }
+    }
+
+    /**
+     * Pastes a copied entry over an existing copy of it, writing only what is
+     * new or changed. Files are rewritten in place, so there is no undo.
+     */
+    public static class SyncPasteCommand extends BackgroundCommand {
+
+        private FileObj originFileObj;
+        private FileObj destnFileObj;
+        private TreeItem<FileObj> destnTreeItem;
+        private FileObj childFileObj;
+        private boolean checksum;
+        private boolean deleteExtras;
+        private int failures;
+
+        SyncPasteCommand(TextFieldTreeCellImpl treeCell) {
+            super(treeCell);
+            this.context = copyPasteContext.getClone();
+        }
+
+        @Override
+        boolean prepare() {
+            if (!context.isPastePending() || context.getActionType() != CopyPasteContext.Actions.COPY) {
+                return false;
+            }
+            originFileObj = context.getOriginFileObj();
+            destnTreeItem = this.treeCell.getTreeItem();
+            if (destnTreeItem.getValue() instanceof SingleFileObj && destnTreeItem.getParent() != null) {
+                destnTreeItem = destnTreeItem.getParent();
+            }
+            destnFileObj = destnTreeItem.getValue();
+            FolderFileObj destnFolder = (FolderFileObj) destnFileObj;
+            if (originFileObj instanceof FolderFileObj) {
+                childFileObj = new FolderFileObj(destnFolder, originFileObj.getShortName());
+            } else {
+                childFileObj = new SingleFileObj(destnFolder, originFileObj.getShortName());
+            }
+            if (Paths.get(childFileObj.getFileName()).startsWith(Paths.get(originFileObj.getFileName()))) {
+                opLog.error("sync.refused", "src=" + originFileObj.getFileName() + " dst=" + childFileObj.getFileName());
+                return false;
+            }
+            return askOptions();
+        }
+
+        private boolean askOptions() {
+            CheckBox checksumBox = new CheckBox("Compare the content of files that look unchanged");
+            CheckBox deleteBox = new CheckBox("Delete what " + originFileObj.getShortName() + " does not have");
+            Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+            alert.setTitle("Sync paste");
+            alert.setHeaderText("Sync " + childFileObj.getFileName() + " with " + originFileObj.getFileName()
+                    + "? This cannot be undone.");
+            alert.getDialogPane().setContent(new VBox(8, checksumBox, deleteBox));
+            if (alert.showAndWait().orElse(ButtonType.CANCEL) != ButtonType.OK) {
+                return false;
+            }
+            checksum = checksumBox.isSelected();
+            deleteExtras = deleteBox.isSelected();
+            return true;
+        }
+
+        @Override
+        boolean run(CommandProgress progress) throws IOException {
+            Path source = Paths.get(originFileObj.getFileName());
+            Path dest = Paths.get(childFileObj.getFileName());
+            if (originFileObj instanceof FolderFileObj) {
+                FileNode originNode = fileNodes.get(originFileObj.getFileId());
+                if (originNode != null && originNode.totalsComplete) {
+                    progress.setTotal(originNode.subtreeSize, originNode.fileCount);
+                }
+                failures = copyEngine.syncTree(source, dest, checksum, deleteExtras, progress);
+            } else {
+                progress.setTotal(originFileObj.computeSize(), 1);
+                CopyEngine.Sync sync = new CopyEngine.Sync(checksum, false);
+                sync.syncFile(source, dest, progress);
+                opLog.summary("sync.done", "src=" + source + " dst=" + dest + " " + sync);
+            }
+            if (failures > 0) {
+                opLog.error("sync.incomplete", "src=" + source + " dst=" + dest + " failed=" + failures);
+            }
+            return !progress.isCancelled();
+        }
+
+        @Override
+        void finish() {
+            // sizes and entries below the copy changed, it is listed again when opened
+            removeFromModel(childFileObj);
+            addFileNode(destnFileObj, childFileObj, destnTreeItem);
+        }
+
+        @Override
+        void cancelled() {
+            childFileObj.setSize(-1);
+            finish();
+        }
+
+        @Override
+        boolean isUndoable() {
+            return false;
+        }
+
+        @Override
+        public boolean undo() {
+            return false;
+        }
+    }
+
+    public static class CopyPasteContext {
+
+        private FileObj originFileObj, destnFileObj;
+        private boolean isPastePending = false;
+        private Actions actionType;
+        private TreeItem<FileObj> originTreeItem = null;
+        // every entry copied or cut together, the single origin above is the first of them
+        private List<TreeItem<FileObj>> origins = Collections.emptyList();
+
+        private static CopyPasteContext context;
+
+        FileObj getOriginFileObj() {
+            return originFileObj;
+        }
+
+        void setOriginFileObj(FileObj originFileObj) {
+            this.originFileObj = originFileObj;
+        }
+
+        boolean isPastePending() {
+            return isPastePending;
+        }
+
+        void setPastePending(boolean pastePending) {
+            isPastePending = pastePending;
+        }
+
+        Actions getActionType() {
+            return actionType;
+        }
+
+        void setActionType(Actions actionType) {
+            this.actionType = actionType;
+        }
+
+        void setDestnFileObj(FileObj destnFileObj) {
+            this.destnFileObj = destnFileObj;
+        }
+
+        void setOriginTreeItem(TreeItem<FileObj> originTreeItem) {
+            this.originTreeItem = originTreeItem;
+        }
+
+        TreeItem<FileObj> getOriginTreeItem() {
+            return originTreeItem;
+        }
+
+        void setOrigins(List<TreeItem<FileObj>> origins) {
+            this.origins = new ArrayList<>(origins);
+        }
+
+        List<TreeItem<FileObj>> getOrigins() {
+            return origins;
+        }
+
+        public enum Actions {
+            COPY, CUT
+        }
+
+        CopyPasteContext getClone() {
+            CopyPasteContext context = new CopyPasteContext();
+            context.setPastePending(this.isPastePending);
+            context.setOriginFileObj(this.originFileObj);
+            context.setDestnFileObj(this.destnFileObj);
+            context.setActionType(this.actionType);
+            context.setOriginTreeItem(this.originTreeItem);
+            context.origins = this.origins;
+            return context;
+        }
+
+        static CopyPasteContext getCopyPasteContext() {
+            if (context == null) {
+                context = new CopyPasteContext();
+            }
+            return context;
+        }
+
+    }
+
+}
@@ -0,0 +1,185 @@
+package worobella;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static worobella.Core.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CopyEngineTest {
+
+    private static final int BLOCK = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static Object inode(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    @Test
+    void syncRewritesOnlyTheBlocksThatDiffer() throws IOException {
+        byte[] content = randomBytes(6 * BLOCK + 100);
+        Path source = dir.resolve("source");
+        Path dest = dir.resolve("dest");
+        Files.write(source, content);
+        byte[] old = content.clone();
+        old[2 * BLOCK + 7] ^= 1;
+        old[6 * BLOCK + 50] ^= 1;
+        Files.write(dest, old);
+        Files.setLastModifiedTime(dest, FileTime.fromMillis(0));
+
+        CopyEngine.Sync sync = new CopyEngine.Sync(false, false);
+        sync.syncFile(source, dest, new CommandProgress());
+
+        assertArrayEquals(content, Files.readAllBytes(dest));
+        // one full block and the short last one
+        assertTrue(sync.toString().contains("updated=1"), sync.toString());
+        assertTrue(sync.toString().contains("written=" + (BLOCK + 100)), sync.toString());
+        assertEquals(Files.getLastModifiedTime(source), Files.getLastModifiedTime(dest));
+    }
+
+    @Test
+    void syncCutsALongerDestination() throws IOException {
+        byte[] content = randomBytes(5 * BLOCK);
+        Path source = dir.resolve("source");
+        Path dest = dir.resolve("dest");
+        Files.write(source, content);
+        byte[] longer = new byte[content.length + 1000];
+        System.arraycopy(content, 0, longer, 0, content.length);
+        Files.write(dest, longer);
+
+        CopyEngine.Sync sync = new CopyEngine.Sync(false, false);
+        sync.syncFile(source, dest, new CommandProgress());
+
+        assertArrayEquals(content, Files.readAllBytes(dest));
+        assertTrue(sync.toString().contains("written=0"), sync.toString());
+    }
+
+    @Test
+    void verifiedCopyMatchesItsSource() throws IOException {
+        Path source = dir.resolve("source");
+        Path dest = dir.resolve("dest");
+        Files.write(source, randomBytes(3 * BLOCK + 1));
+        CopyEngine.verifyCopies = true;
+        try {
+            CopyEngine.copyFile(source.toFile(), dest.toFile(), new CommandProgress());
+        } finally {
+            CopyEngine.verifyCopies = false;
+        }
+        assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(dest));
+    }
+
+    @Test
+    void verifiedCopyFailsWhenTheDestinationDoesNotReadBackTheSame() throws IOException {
+        Path source = dir.resolve("source");
+        Path dest = dir.resolve("dest");
+        Files.write(source, randomBytes(3 * BLOCK + 1));
+        // changes the destination behind the copy's back once the first chunk is written
+        CommandProgress corrupting = new CommandProgress() {
+            @Override
+            void addBytes(long bytes) {
+                super.addBytes(bytes);
+                try (FileChannel channel = FileChannel.open(dest, StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.wrap(new byte[]{42, 43, 44}), 0);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        CopyEngine.verifyCopies = true;
+        try {
+            assertThrows(IOException.class, () -> CopyEngine.copyFile(source.toFile(), dest.toFile(), corrupting));
+        } finally {
+            CopyEngine.verifyCopies = false;
+        }
+        assertFalse(Files.exists(dest));
+    }
+
+    @Test
+    void moveWithinOneStoreRenames() throws IOException {
+        Path source = dir.resolve("source");
+        Files.createDirectories(source.resolve("sub"));
+        Files.write(source.resolve("sub/f"), randomBytes(100));
+        Object key = inode(source.resolve("sub/f"));
+
+        assertEquals(0, CopyEngine.moveIfSameStore(source, dir.resolve("dest")));
+        assertFalse(Files.exists(source));
+        assertEquals(key, inode(dir.resolve("dest/sub/f")));
+    }
+
+    @Test
+    void moveWithinOneStoreMergesIntoAnExistingFolder() throws IOException {
+        Path source = dir.resolve("source");
+        Path dest = dir.resolve("dest");
+        Files.createDirectories(source.resolve("shared"));
+        Files.createDirectories(dest.resolve("shared"));
+        Files.write(source.resolve("shared/new"), randomBytes(10));
+        Files.write(source.resolve("replaced"), randomBytes(20));
+        Files.write(dest.resolve("shared/kept"), randomBytes(30));
+        Files.write(dest.resolve("replaced"), randomBytes(40));
+        Object key = inode(source.resolve("shared/new"));
+
+        assertEquals(0, CopyEngine.moveIfSameStore(source, dest));
+        assertFalse(Files.exists(source));
+        // moved, not copied
+        assertEquals(key, inode(dest.resolve("shared/new")));
+        assertTrue(Files.exists(dest.resolve("shared/kept")));
+        assertEquals(20, Files.size(dest.resolve("replaced")));
+    }
+
+    @Test
+    void moveWithinOneStoreLeavesWhatItCannotMerge() throws IOException {
+        Path source = dir.resolve("source");
+        Path dest = dir.resolve("dest");
+        Files.createDirectories(source);
+        Files.createDirectories(dest.resolve("clash/inside"));
+        Files.write(source.resolve("clash"), randomBytes(10));
+        Files.write(source.resolve("moved"), randomBytes(10));
+
+        assertEquals(1, CopyEngine.moveIfSameStore(source, dest));
+        assertTrue(Files.exists(source.resolve("clash")));
+        assertFalse(Files.exists(source.resolve("moved")));
+        assertTrue(Files.exists(dest.resolve("moved")));
+        assertTrue(Files.isDirectory(dest.resolve("clash/inside")));
+    }
+
+    @Test
+    void moveAcrossStoresAsksForACopy() throws IOException {
+        Path other = Paths.get("/dev/shm");
+        assumeTrue(Files.isDirectory(other) && Files.isWritable(other)
+                && !Files.getFileStore(other).equals(Files.getFileStore(dir)), "no second file store");
+        Path source = dir.resolve("source");
+        Files.write(source, randomBytes(10));
+        Path dest = Files.createTempDirectory(other, "copy-engine-test").resolve("dest");
+        try {
+            assertEquals(-1, CopyEngine.moveIfSameStore(source, dest));
+            assertTrue(Files.exists(source));
+            assertFalse(Files.exists(dest));
+        } finally {
+            Files.delete(dest.getParent());
+        }
+    }
+}
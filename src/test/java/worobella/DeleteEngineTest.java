@@ -0,0 +1,75 @@
+package worobella;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static worobella.Core.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeleteEngineTest {
+
+    @TempDir
+    Path dir;
+
+    private static void write(Path file, int bytes) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[bytes]);
+    }
+
+    @Test
+    void deletesAWholeTree() throws IOException {
+        Path root = dir.resolve("tree");
+        for (int i = 0; i < 600; i++) {
+            write(root.resolve("d" + i % 3).resolve("f" + i), 10);
+        }
+        write(root.resolve("d0/deeper/last"), 5);
+        CommandProgress progress = new CommandProgress();
+
+        assertEquals(0, new DeleteEngine(4).deleteTree(root, progress));
+        assertFalse(Files.exists(root));
+        assertEquals(601, progress.getFilesDone());
+        assertEquals(6005, progress.getBytesDone());
+    }
+
+    @Test
+    void countsWhatCouldNotBeDeletedAndKeepsItsFolders() throws IOException {
+        Path root = dir.resolve("tree");
+        write(root.resolve("gone/a"), 1);
+        write(root.resolve("gone/b"), 1);
+        write(root.resolve("top"), 1);
+        Path locked = root.resolve("locked");
+        write(locked.resolve("x"), 1);
+        write(locked.resolve("y"), 1);
+        write(locked.resolve("z"), 1);
+        Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("r-xr-xr-x"));
+        try {
+            // permissions do not stop root from deleting
+            assumeFalse(Files.isWritable(locked), "running with permission checks disabled");
+
+            assertEquals(3, new DeleteEngine(4).deleteTree(root, new CommandProgress()));
+            assertFalse(Files.exists(root.resolve("gone")));
+            assertFalse(Files.exists(root.resolve("top")));
+            assertTrue(Files.exists(locked.resolve("x")));
+            assertTrue(Files.exists(locked.resolve("y")));
+            assertTrue(Files.exists(locked.resolve("z")));
+        } finally {
+            Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwxr-xr-x"));
+        }
+    }
+
+    @Test
+    void deletesASingleFile() throws IOException {
+        Path file = dir.resolve("single");
+        write(file, 3);
+        assertEquals(0, new DeleteEngine(1).deleteTree(file, new CommandProgress()));
+        assertFalse(Files.exists(file));
+    }
+}
@@ -0,0 +1,121 @@
+package worobella;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static worobella.Core.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileTreeIteratorTest {
+
+    @TempDir
+    Path dir;
+    private FileNode root;
+
+    @BeforeEach
+    void buildTree() throws IOException {
+        Path rootDir = dir.resolve("tree");
+        for (int a = 0; a < 4; a++) {
+            for (int b = 0; b < 3; b++) {
+                Path folder = rootDir.resolve("a" + a).resolve("b" + b);
+                Files.createDirectories(folder);
+                for (int f = 0; f < 5; f++) {
+                    Files.write(folder.resolve("f" + f + ".txt"), new byte[f]);
+                }
+            }
+            Files.write(rootDir.resolve("a" + a).resolve("top.dat"), new byte[1]);
+        }
+        root = populateFileNodes(rootDir.toString());
+    }
+
+    private List<FileObj> serial() {
+        List<FileObj> all = new ArrayList<>();
+        FileTreeIterator iterator = new FileTreeIterator(root.self);
+        while (iterator.hasNext()) {
+            all.add(iterator.getNext());
+        }
+        return all;
+    }
+
+    private static Map<FileObj, Integer> counts(List<FileObj> fileObjs) {
+        Map<FileObj, Integer> counts = new IdentityHashMap<>();
+        for (FileObj fileObj : fileObjs) {
+            counts.merge(fileObj, 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    @Test
+    void walksEveryEntryOnce() {
+        List<FileObj> all = serial();
+        // root, 4 + 12 folders, 4 + 60 files
+        assertEquals(81, all.size());
+        assertEquals(all.size(), counts(all).size());
+    }
+
+    @Test
+    void splittingCoversEveryEntryExactlyOnce() {
+        for (FileTreeIterator.Order order : FileTreeIterator.Order.values()) {
+            List<FileObj> expected = serial();
+            Deque<Spliterator<FileObj>> pending = new ArrayDeque<>();
+            pending.push(new FileTreeIterator(root.self).order(order).spliterator());
+            List<FileObj> seen = new ArrayList<>();
+            int splits = 0;
+            while (!pending.isEmpty()) {
+                Spliterator<FileObj> cursor = pending.pop();
+                // take a few steps between splits, so frames are split part way through
+                for (int i = 0; i < 3; i++) {
+                    if (!cursor.tryAdvance(seen::add)) {
+                        break;
+                    }
+                }
+                Spliterator<FileObj> split = cursor.trySplit();
+                if (split != null) {
+                    splits++;
+                    pending.push(split);
+                    pending.push(cursor);
+                } else {
+                    cursor.forEachRemaining(seen::add);
+                }
+            }
+            assertTrue(splits > 5, order + " split only " + splits + " times");
+            assertEquals(counts(expected), counts(seen), order.toString());
+        }
+    }
+
+    @Test
+    void parallelStreamMatchesTheSerialWalk() {
+        List<FileObj> parallel = new FileTreeIterator(root.self).stream(true).collect(Collectors.toList());
+        assertEquals(counts(serial()), counts(parallel));
+    }
+
+    @Test
+    void filterAndDepthLimitApplyToSplitsToo() {
+        List<FileObj> files = new FileTreeIterator(root.self)
+                .filter(FileTreeIterator.withExtension("txt"))
+                .stream(true)
+                .collect(Collectors.toList());
+        assertEquals(60, files.size());
+        List<FileObj> shallow = new FileTreeIterator(root.self).maxDepth(1).stream(true).collect(Collectors.toList());
+        List<String> names = shallow.stream().map(FileObj::getShortName).sorted().collect(Collectors.toList());
+        List<String> expected = new ArrayList<>();
+        Collections.addAll(expected, "a0", "a1", "a2", "a3", root.self.getShortName());
+        Collections.sort(expected);
+        assertEquals(expected, names);
+    }
+}
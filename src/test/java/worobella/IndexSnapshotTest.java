@@ -0,0 +1,103 @@
+package worobella;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static worobella.Core.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IndexSnapshotTest {
+
+    @TempDir
+    Path dir;
+    private String rootPath;
+    private Path snapshot;
+
+    @BeforeEach
+    void saveSnapshot() throws IOException {
+        Path root = dir.resolve("tree");
+        Files.createDirectories(root.resolve("sub"));
+        Files.write(root.resolve("a.txt"), new byte[3]);
+        Files.write(root.resolve("sub/b.txt"), new byte[5]);
+        rootPath = root.toAbsolutePath().normalize().toString();
+        snapshot = dir.resolve("index.bin");
+        indexFile = null;
+        IndexSnapshot.save(populateFileNodes(rootPath), snapshot);
+    }
+
+    @AfterEach
+    void forgetSnapshot() {
+        indexFile = null;
+    }
+
+    private static TreeSet<String> names(FileNode node) {
+        TreeSet<String> names = new TreeSet<>();
+        for (FileObj child : node.children) {
+            names.add(child.getShortName());
+        }
+        return names;
+    }
+
+    private void flipByte(long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, position);
+            one.put(0, (byte) ~one.get(0)).rewind();
+            channel.write(one, position);
+        }
+    }
+
+    @Test
+    void loadsAnIntactSnapshot() {
+        List<FileNode> listed = new ArrayList<>();
+        FileNode root = IndexSnapshot.load(rootPath, snapshot, listed);
+        assertNotNull(root);
+        assertEquals(new TreeSet<>(Arrays.asList("a.txt", "sub")), names(root));
+        assertFalse(listed.isEmpty());
+    }
+
+    @Test
+    void rejectsAChecksumMismatchAndDeletesTheFile() throws IOException {
+        flipByte(Files.size(snapshot) - 1);
+        assertNull(IndexSnapshot.load(rootPath, snapshot, new ArrayList<>()));
+        assertFalse(Files.exists(snapshot));
+    }
+
+    @Test
+    void rejectsAFileThatIsNoSnapshot() throws IOException {
+        Files.write(snapshot, "not a snapshot at all".getBytes());
+        assertNull(IndexSnapshot.load(rootPath, snapshot, new ArrayList<>()));
+        Files.write(snapshot, new byte[2]);
+        assertNull(IndexSnapshot.load(rootPath, snapshot, new ArrayList<>()));
+    }
+
+    @Test
+    void rejectsASnapshotOfAnotherRoot() {
+        assertNull(IndexSnapshot.load(rootPath + "-elsewhere", snapshot, new ArrayList<>()));
+    }
+
+    @Test
+    void opensACorruptSnapshotByScanning() throws IOException {
+        flipByte(20);
+        indexFile = snapshot;
+        FileNode root = populateFileNodes(rootPath);
+        assertEquals(rootPath, root.self.getFileName());
+        assertEquals(new TreeSet<>(Arrays.asList("a.txt", "sub")), names(root));
+    }
+}
@@ -0,0 +1,74 @@
+package worobella;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static worobella.Core.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class NameIndexTest {
+
+    private NameIndex index;
+    private FolderFileObj root;
+
+    @BeforeEach
+    void fillIndex() {
+        index = new NameIndex();
+        root = new FolderFileObj("/index-test");
+        for (String name : Arrays.asList("Report.pdf", "report-2023.txt", "old_report.txt", "notes.md",
+                "readme", "a.txt", "ab.txt")) {
+            index.add(new SingleFileObj(root, name));
+        }
+    }
+
+    private List<String> search(String query) {
+        List<String> names = new ArrayList<>();
+        int found = index.search(query, 100, () -> false, batch -> batch.forEach(f -> names.add(f.getShortName())));
+        assertEquals(names.size(), found);
+        return new ArrayList<>(new TreeSet<>(names));
+    }
+
+    @Test
+    void plainQueryMatchesAnywhereIgnoringCase() {
+        assertEquals(Arrays.asList("Report.pdf", "old_report.txt", "report-2023.txt"), search("REPORT"));
+        assertEquals(Arrays.asList("notes.md"), search("tes.m"));
+        assertEquals(Arrays.asList(), search("missing"));
+    }
+
+    @Test
+    void anchoredGlobIsAPrefixQuery() {
+        assertEquals(Arrays.asList("Report.pdf", "report-2023.txt"), search("rep*"));
+        assertEquals(Arrays.asList("readme"), search("readme"));
+    }
+
+    @Test
+    void globMatchesTheWholeName() {
+        assertEquals(Arrays.asList("a.txt", "ab.txt", "old_report.txt", "report-2023.txt"), search("*.txt"));
+        assertEquals(Arrays.asList("a.txt"), search("?.txt"));
+        assertEquals(Arrays.asList("report-2023.txt"), search("report-*.t?t"));
+    }
+
+    @Test
+    void findsEntriesAddedAfterAQueryAndDropsRemovedOnes() {
+        assertEquals(3, search("report").size());
+        SingleFileObj late = new SingleFileObj(root, "late_report.doc");
+        index.add(late);
+        assertEquals(Arrays.asList("Report.pdf", "late_report.doc", "old_report.txt", "report-2023.txt"),
+                search("report"));
+        index.remove(late);
+        assertEquals(3, search("report").size());
+    }
+
+    @Test
+    void stopsAtTheLimit() {
+        List<FileObj> matches = new ArrayList<>();
+        int found = index.search("*", 2, () -> false, matches::addAll);
+        assertEquals(2, found);
+        assertEquals(2, matches.size());
+    }
+}